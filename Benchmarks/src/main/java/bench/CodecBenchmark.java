@@ -0,0 +1,87 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.BinaryMessageCodec;
+import protocol.Message;
+import protocol.MessageCodec;
+
+/**
+ * Codificar y decodificar un mensaje de chat: Gson con {@code LocalDateTimeAdapter} (el códec
+ * original) frente a {@link MessageCodec} (JSON a mano) y {@link BinaryMessageCodec}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+    // Longitud del contenido: mensaje corto típico y uno largo
+    @Param({"16", "512"})
+    int contentLength;
+
+    private LegacyGson.Message legacy;
+    private Message message;
+    private String legacyJson;
+    private String json;
+    private ByteBuffer binary;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder(contentLength);
+        for (int i = 0; i < contentLength; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        String contenido = sb.toString();
+        legacy = new LegacyGson.Message("usuario42", contenido, "MENSAJE");
+        message = new Message("usuario42", contenido, "MENSAJE");
+        message.setSala("general");
+        message.setSeq(123456L);
+        legacyJson = LegacyGson.GSON.toJson(legacy);
+        json = MessageCodec.encode(message);
+        binary = BinaryMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public String gsonEncode() {
+        return LegacyGson.GSON.toJson(legacy);
+    }
+
+    @Benchmark
+    public LegacyGson.Message gsonDecode() {
+        return LegacyGson.GSON.fromJson(legacyJson, LegacyGson.Message.class);
+    }
+
+    @Benchmark
+    public String jsonEncode() {
+        return MessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Message jsonDecode() {
+        return MessageCodec.decode(json);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        return BinaryMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public Message binaryDecode() {
+        return BinaryMessageCodec.decode(binary.duplicate());
+    }
+}
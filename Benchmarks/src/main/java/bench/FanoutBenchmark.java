@@ -0,0 +1,81 @@
+package bench;
+
+import jakarta.websocket.Session;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.BinaryMessageCodec;
+import protocol.Message;
+import server.ChatEndpoint;
+
+/**
+ * Difusión completa de un mensaje de chat a N sesiones de la sala {@code general}: entra por
+ * {@link ChatEndpoint#onMessage} y recorre historial, codificación y colas de salida. Las sesiones
+ * son {@link StubSession}, que confirman cada envío en el acto, así que solo se mide el servidor.
+ *
+ * <p>Sin registro en disco y con los límites de ritmo fuera de alcance, para no medir el
+ * throttling.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+        "-Dchat.log.enabled=false",
+        "-Dchat.rate.perSecond=1e12",
+        "-Dchat.rate.fanoutPerSecond=1e12",
+        "-Dchat.rate.fanoutBurst=2000000000"})
+@State(Scope.Thread)
+public class FanoutBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    int fanout;
+
+    // Mitad de las sesiones en JSON y mitad en binario: cada frame se codifica en los dos formatos
+    @Param({"false", "true"})
+    boolean mixedFormats;
+
+    private ChatEndpoint sender;
+    private Session senderSession;
+    private StubSession[] receivers;
+    private Message message;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        receivers = new StubSession[fanout];
+        for (int i = 0; i < fanout; i++) {
+            receivers[i] = new StubSession(i, mixedFormats && i % 2 == 1 ? BinaryMessageCodec.SUBPROTOCOL : "");
+            new ChatEndpoint().onOpen(receivers[i]);
+        }
+        sender = new ChatEndpoint();
+        senderSession = receivers[0];
+        message = new Message("usuario0", "hola a todos, esto es un mensaje de prueba", "MENSAJE");
+        message.setSala("general");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (StubSession s : receivers) {
+            new ChatEndpoint().onClose(s);
+        }
+    }
+
+    @Benchmark
+    public void broadcast() {
+        // onMessage asigna secuencia al mensaje: una copia por operación, como si llegara de la red
+        Message m = new Message(message.getUsuario(), message.getContenido(), message.getTipo());
+        m.setSala(message.getSala());
+        sender.onMessage(m, senderSession);
+    }
+}
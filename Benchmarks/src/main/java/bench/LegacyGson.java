@@ -0,0 +1,57 @@
+package bench;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import java.lang.reflect.Type;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Copia del códec original (Gson + {@code LocalDateTimeAdapter}) que ya no existe en el árbol, para
+ * medir contra él los códecs actuales.
+ */
+final class LegacyGson {
+    static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+            .create();
+
+    private LegacyGson() {
+    }
+
+    /** Mensaje con la forma del original: la hora como {@link LocalDateTime}. */
+    static final class Message {
+        private String usuario;
+        private String contenido;
+        private LocalDateTime hora;
+        private String tipo;
+
+        Message(String usuario, String contenido, String tipo) {
+            this.usuario = usuario;
+            this.contenido = contenido;
+            this.hora = LocalDateTime.now();
+            this.tipo = tipo;
+        }
+
+        String getContenido() { return contenido; }
+    }
+
+    private static final class LocalDateTimeAdapter implements JsonSerializer<LocalDateTime>, JsonDeserializer<LocalDateTime> {
+        private static final DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+        @Override
+        public JsonElement serialize(LocalDateTime localDateTime, Type type, JsonSerializationContext context) {
+            return new JsonPrimitive(formatter.format(localDateTime));
+        }
+
+        @Override
+        public LocalDateTime deserialize(JsonElement jsonElement, Type type, JsonDeserializationContext context) {
+            return LocalDateTime.parse(jsonElement.getAsString(), formatter);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import protocol.Message;
+import protocol.MessageCodec;
+
+/**
+ * Coste de avisar de un cambio de presencia con N usuarios conectados: el original reconstruía
+ * {@code "Usuarios conectados: " + String.join(...)} con todos los nombres y lo serializaba con
+ * Gson en cada alta; ahora se envía la instantánea solo al que entra y a los demás un delta
+ * {@code USER_JOINED}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PresenceBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int users;
+
+    private Map<Object, String> usuariosConectados;
+
+    @Setup
+    public void setup() {
+        usuariosConectados = new ConcurrentHashMap<>();
+        for (int i = 0; i < users; i++) {
+            usuariosConectados.put(new Object(), "usuario" + i);
+        }
+    }
+
+    @Benchmark
+    public String legacyJoinRebuild() {
+        LegacyGson.Message lista = new LegacyGson.Message("Sistema",
+                "Usuarios conectados: " + String.join(", ", usuariosConectados.values()), "INFO");
+        return LegacyGson.GSON.toJson(lista);
+    }
+
+    @Benchmark
+    public String snapshot() {
+        Message m = new Message("Sistema", null, "PRESENCE_SNAPSHOT");
+        m.setUsuarios(new ArrayList<>(usuariosConectados.values()));
+        m.setVersion(42L);
+        return MessageCodec.encode(m);
+    }
+
+    @Benchmark
+    public String delta() {
+        Message m = new Message("usuario7", null, "USER_JOINED");
+        m.setVersion(42L);
+        return MessageCodec.encode(m);
+    }
+
+    // Referencia: solo la lista de nombres, sin codificar
+    @Benchmark
+    public List<String> copyNames() {
+        return new ArrayList<>(usuariosConectados.values());
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import jakarta.websocket.Session;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Conjunto de sesiones conectadas: {@link CopyOnWriteArraySet} (copia el array en cada alta y baja)
+ * frente a {@code ConcurrentHashMap.newKeySet()}, con conexiones que entran y salen y con el
+ * recorrido completo que hace una difusión.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionSetBenchmark {
+
+    @Param({"1000", "10000", "50000"})
+    int sessions;
+
+    private Set<Session> copyOnWrite;
+    private Set<Session> keySet;
+    private Session[] churn;
+    private int next;
+
+    @Setup
+    public void setup() {
+        copyOnWrite = new CopyOnWriteArraySet<>();
+        keySet = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < sessions; i++) {
+            Session s = new StubSession(i);
+            copyOnWrite.add(s);
+            keySet.add(s);
+        }
+        churn = new Session[64];
+        for (int i = 0; i < churn.length; i++) {
+            churn[i] = new StubSession(sessions + i);
+        }
+    }
+
+    // Una conexión que entra y sale con el conjunto lleno
+    @Benchmark
+    public boolean copyOnWriteChurn() {
+        Session s = churn[next++ & (churn.length - 1)];
+        copyOnWrite.add(s);
+        return copyOnWrite.remove(s);
+    }
+
+    @Benchmark
+    public boolean keySetChurn() {
+        Session s = churn[next++ & (churn.length - 1)];
+        keySet.add(s);
+        return keySet.remove(s);
+    }
+
+    @Benchmark
+    public void copyOnWriteIterate(Blackhole bh) {
+        for (Session s : copyOnWrite) {
+            bh.consume(s);
+        }
+    }
+
+    @Benchmark
+    public void keySetIterate(Blackhole bh) {
+        for (Session s : keySet) {
+            bh.consume(s);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package bench;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Extension;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.RemoteEndpoint;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import jakarta.websocket.WebSocketContainer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * {@link Session} sin red: cada envío asíncrono se confirma en el acto, así los benchmarks miden
+ * solo el coste del servidor (encolar, codificar, despachar). Cuenta lo enviado para que el JIT no
+ * pueda descartarlo.
+ */
+final class StubSession implements Session {
+    private static final SendResult OK = new SendResult();
+
+    private final String id;
+    private final String subprotocol;
+    private final Map<String, Object> userProperties = new HashMap<>();
+    private final Async async = new Async();
+    long sentFrames;
+    long sentBytes;
+
+    StubSession(int id) {
+        this(id, "");
+    }
+
+    StubSession(int id, String subprotocol) {
+        this.id = "stub-" + id;
+        this.subprotocol = subprotocol;
+    }
+
+    @Override public RemoteEndpoint.Async getAsyncRemote() { return async; }
+    @Override public RemoteEndpoint.Basic getBasicRemote() { throw new UnsupportedOperationException(); }
+    @Override public String getId() { return id; }
+    @Override public String getNegotiatedSubprotocol() { return subprotocol; }
+    @Override public boolean isOpen() { return true; }
+    @Override public void close() { }
+    @Override public void close(CloseReason closeReason) { }
+    @Override public Map<String, Object> getUserProperties() { return userProperties; }
+    @Override public WebSocketContainer getContainer() { return null; }
+    @Override public void addMessageHandler(MessageHandler handler) { }
+    @Override public <T> void addMessageHandler(Class<T> clazz, MessageHandler.Whole<T> handler) { }
+    @Override public <T> void addMessageHandler(Class<T> clazz, MessageHandler.Partial<T> handler) { }
+    @Override public Set<MessageHandler> getMessageHandlers() { return Collections.emptySet(); }
+    @Override public void removeMessageHandler(MessageHandler handler) { }
+    @Override public String getProtocolVersion() { return "13"; }
+    @Override public List<Extension> getNegotiatedExtensions() { return Collections.emptyList(); }
+    @Override public boolean isSecure() { return false; }
+    @Override public long getMaxIdleTimeout() { return 0; }
+    @Override public void setMaxIdleTimeout(long milliseconds) { }
+    @Override public void setMaxBinaryMessageBufferSize(int length) { }
+    @Override public int getMaxBinaryMessageBufferSize() { return 0; }
+    @Override public void setMaxTextMessageBufferSize(int length) { }
+    @Override public int getMaxTextMessageBufferSize() { return 0; }
+    @Override public URI getRequestURI() { return null; }
+    @Override public Map<String, List<String>> getRequestParameterMap() { return Collections.emptyMap(); }
+    @Override public String getQueryString() { return null; }
+    @Override public Map<String, String> getPathParameters() { return Collections.emptyMap(); }
+    @Override public Principal getUserPrincipal() { return null; }
+    @Override public Set<Session> getOpenSessions() { return Collections.emptySet(); }
+
+    private final class Async implements RemoteEndpoint.Async {
+        @Override
+        public void sendText(String text, SendHandler handler) {
+            sentFrames++;
+            sentBytes += text.length();
+            handler.onResult(OK);
+        }
+
+        @Override
+        public void sendBinary(ByteBuffer data, SendHandler handler) {
+            sentFrames++;
+            sentBytes += data.remaining();
+            handler.onResult(OK);
+        }
+
+        @Override
+        public Future<Void> sendText(String text) {
+            sendText(text, result -> { });
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public Future<Void> sendBinary(ByteBuffer data) {
+            sendBinary(data, result -> { });
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override public Future<Void> sendObject(Object data) { throw new UnsupportedOperationException(); }
+        @Override public void sendObject(Object data, SendHandler handler) { throw new UnsupportedOperationException(); }
+        @Override public long getSendTimeout() { return 0; }
+        @Override public void setSendTimeout(long timeoutmillis) { }
+        @Override public void setBatchingAllowed(boolean allowed) { }
+        @Override public boolean getBatchingAllowed() { return false; }
+        @Override public void flushBatch() { }
+        @Override public void sendPing(ByteBuffer applicationData) { }
+        @Override public void sendPong(ByteBuffer applicationData) { }
+    }
+
+}
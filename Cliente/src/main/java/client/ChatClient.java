@@ -1,37 +1,84 @@
 package client;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializer;
-import com.google.gson.JsonElement; // <-- Añadir esta línea
-import server.Message;
+import protocol.BinaryMessageCodec;
+import protocol.Message;
+import protocol.MessageCodec;
+import protocol.PerMessageDeflate;
 
 import jakarta.websocket.*;
 import org.glassfish.tyrus.client.ClientManager;
+import java.io.IOException;
 import java.net.URI;
-import java.time.LocalDateTime; // <-- Nueva importación
-import java.time.format.DateTimeFormatter; // <-- Nueva importación
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
-@ClientEndpoint
+// Endpoint programático en lugar de @ClientEndpoint: la anotación no permite ofrecer extensiones (permessage-deflate)
 public class ChatClient {
-    private Session session;
+    // Reconexión automática: espera aleatoria entre 0 y base·2^intento (con techo), para que tras un
+    // reinicio del servidor los clientes no vuelvan todos en el mismo instante
+    private static final long RECONNECT_BASE_MS = Long.getLong("chat.reconnect.baseMs", 500);
+    private static final long RECONNECT_MAX_MS = Long.getLong("chat.reconnect.maxMs", 30000);
+    // Frames recibidos pendientes de procesar; si se llena, el hilo del socket espera (el servidor
+    // aplica entonces su política con clientes lentos)
+    private static final int INBOUND_CAPACITY = Math.max(16, Integer.getInteger("chat.client.inboundQueue", 4096));
+    // Nombres temporales (Usuario<dígitos>) que el servidor puede usar antes de recibir SET_NAME
+    private static final Pattern TEMP_NAME = Pattern.compile("Usuario\\d+");
+
+    private volatile Session session;
+    private volatile ClientOutbox outbox;
+    // Lo recibido (texto, binario o cambios de sesión) se procesa en orden en el hilo chat-inbound,
+    // nunca en el del contenedor: así el socket no espera a la interfaz ni la interfaz al socket
+    private final BlockingQueue<Object> inbound = new ArrayBlockingQueue<>(INBOUND_CAPACITY);
+    private final Thread inboundWorker = new Thread(this::processInbound, "chat-inbound");
+    private WebSocketContainer container;
     private ClientGUI gui;
     private String username;
     private long connectedAt = 0;
     private String serverUri;
-    // Modificamos la inicialización de Gson
-    private static Gson gson = new GsonBuilder()
-            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
-            .create();
+    // Solo con el constructor sin URI: elige el nodo menos cargado y recuerda la lista para reconectar
+    private ServerDiscovery discovery;
+    // Copia local de los mensajes recibidos, la del servidor de cacheUri (se cambia desde chat-inbound)
+    private volatile MessageCache cache;
+    private String cacheUri;
+    // Sala a la que se envían los mensajes escritos (cambia con /join y /leave)
+    private volatile String currentRoom = "general";
+    // Salas pedidas con /join y /leave desde esta sesión, pendientes de confirmación: las de otros
+    // dispositivos del mismo usuario llegan con el mismo nombre y no deben cambiar la sala actual
+    private volatile String pendingJoin;
+    private volatile String pendingLeave;
+    // Última versión de presencia aplicada (-1 = aún no hay snapshot); solo desde chat-inbound, como firstLiveSeq
+    private long presenceVersion = -1;
+    // Mayor secuencia de chat recibida; al conectar se pide el historial posterior
+    private volatile long lastSeq = 0;
+    // Primera secuencia recibida en vivo tras conectar: lo que llegue del historial a partir de ahí ya se mostró
+    private long firstLiveSeq = 0;
+    // La hora llega en epoch millis; se formatea con un formateador ya construido
+    private static final DateTimeFormatter HORA = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+    // Token que entrega el servidor tras SET_NAME; al reconectar se presenta para conservar nombre y salas
+    private volatile String resumeToken;
+    // Última búsqueda y cursor de su página siguiente (null = no hay más)
+    private volatile String lastSearch;
+    private volatile Long searchCursor;
+    // true tras disconnect(): el cierre es voluntario y no se reconecta
+    private volatile boolean closing;
+    private int attempts;
+    private ScheduledFuture<?> pendingReconnect;
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-reconnect");
+        t.setDaemon(true);
+        return t;
+    });
 
     /**
      * @param serverUri URI completa del servidor WebSocket (ej. ws://192.168.1.10:8025/websocket/chat)
@@ -40,6 +87,7 @@ public class ChatClient {
         this.gui = gui;
         this.username = username;
         this.serverUri = (serverUri == null || serverUri.trim().isEmpty()) ? "ws://localhost:8025/websocket/chat" : serverUri.trim();
+        startInbound();
         connect();
     }
 
@@ -49,170 +97,501 @@ public class ChatClient {
     public ChatClient(ClientGUI gui, String username) {
         this.gui = gui;
         this.username = username;
-        this.serverUri = discoverServerUri();
+        this.discovery = new ServerDiscovery(fallbackUri());
+        startInbound();
         connect();
     }
 
-    // Intenta descubrir el servidor mediante broadcast UDP en el puerto 9090
-    private String discoverServerUri() {
-        int discoveryPort = 9090;
+    // URI de respaldo cuando ningún servidor responde al descubrimiento
+    private static String fallbackUri() {
         // Allow override via environment variable or system property
         String envUri = System.getenv("CHAT_SERVER_URI");
         if (envUri == null || envUri.trim().isEmpty()) {
             envUri = System.getProperty("chat.server.uri");
         }
-        String defaultUri = (envUri != null && !envUri.trim().isEmpty()) ? envUri.trim() : "ws://10.40.48.104:8025/websocket/chat";
-        try (DatagramSocket socket = new DatagramSocket()) {
-            socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(2));
-            socket.setBroadcast(true);
-            byte[] sendData = "DISCOVER_CHAT_SERVER".getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, InetAddress.getByName("255.255.255.255"), discoveryPort);
-            socket.send(sendPacket);
-
-            // Esperar respuesta
-            byte[] recvBuf = new byte[256];
-            DatagramPacket receivePacket = new DatagramPacket(recvBuf, recvBuf.length);
-            socket.receive(receivePacket);
-            String message = new String(receivePacket.getData(), 0, receivePacket.getLength()).trim();
-            if (message.startsWith("CHAT_SERVER:")) {
-                String parts = message.substring("CHAT_SERVER:".length());
-                String[] p = parts.split(":");
-                if (p.length >= 2) {
-                    String host = p[0];
-                    String port = p[1];
-                    return String.format("ws://%s:%s/websocket/chat", host, port);
-                }
-            }
-        } catch (Exception e) {
-            // Silenciar: fallback a localhost
-        }
-        return defaultUri;
+        return (envUri != null && !envUri.trim().isEmpty()) ? envUri.trim() : "ws://10.40.48.104:8025/websocket/chat";
+    }
+
+    private void startInbound() {
+        inboundWorker.setDaemon(true);
+        inboundWorker.start();
     }
 
     private void connect() {
+        if (closing) {
+            return;
+        }
+        if (discovery != null) {
+            serverUri = discovery.pick();
+        }
+        if (!serverUri.equals(cacheUri)) {
+            // Antes de conectar: la caché (y con ella lastSeq) es la de este servidor, porque cada nodo
+            // numera a su manera. La primera vez lo guardado se muestra ya; tras cambiar de nodo no
+            boolean primera = cacheUri == null;
+            cacheUri = serverUri;
+            MessageCache abierta = MessageCache.open(serverUri, username);
+            enqueueInbound((Runnable) () -> useCache(abierta, primera));
+        }
         try {
-            WebSocketContainer container = null;
-            try {
-                container = ContainerProvider.getWebSocketContainer();
-            } catch (Throwable ignored) {
-                // ContainerProvider may fail to find a provider when running from a shaded jar.
+            if (container == null) {
+                try {
+                    container = ContainerProvider.getWebSocketContainer();
+                } catch (Throwable ignored) {
+                    // ContainerProvider may fail to find a provider when running from a shaded jar.
+                }
             }
             if (container == null) {
                 // Fallback: create a Tyrus ClientManager directly so we don't rely on ServiceLoader
                 container = ClientManager.createClient();
             }
-            container.connectToServer(this, new URI(serverUri));
+            container.connectToServer(new Endpoint() {
+                @Override
+                public void onOpen(Session session, EndpointConfig config) {
+                    session.addMessageHandler(String.class, (MessageHandler.Whole<String>) ChatClient.this::onMessage);
+                    session.addMessageHandler(ByteBuffer.class, (MessageHandler.Whole<ByteBuffer>) ChatClient.this::onBinaryMessage);
+                    ChatClient.this.onOpen(session);
+                }
+
+                @Override
+                public void onClose(Session session, CloseReason closeReason) {
+                    ClientOutbox o = outbox;
+                    if (o != null) {
+                        o.close();
+                    }
+                    ChatClient.this.onClose(session, closeReason);
+                }
+            }, endpointConfig(), new URI(serverUri));
         } catch (Exception e) {
-            String now = java.time.LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+            String now = now();
             // Show the full exception class and message in the GUI and print stacktrace to console for debugging
             gui.appendSystemMessage(String.format("[%s] Error al conectar: %s: %s", now, e.getClass().getName(), e.getMessage()));
-            StringBuilder sb = new StringBuilder();
-            for (StackTraceElement el : e.getStackTrace()) {
-                sb.append(el.toString()).append("\n");
+            if (attempts == 0) {
+                StringBuilder sb = new StringBuilder();
+                for (StackTraceElement el : e.getStackTrace()) {
+                    sb.append(el.toString()).append("\n");
+                }
+                // Optionally append the first part of the stacktrace to the GUI to aid debugging
+                gui.appendSystemMessage(sb.toString().split("\\n")[0]);
+                e.printStackTrace();
             }
-            // Optionally append the first part of the stacktrace to the GUI to aid debugging
-            gui.appendSystemMessage(sb.toString().split("\\n")[0]);
-            e.printStackTrace();
+            if (discovery != null) {
+                discovery.failed(serverUri);
+            }
+            scheduleReconnect();
+        }
+    }
+
+    // Programa un intento de conexión con espera exponencial y aleatoria (solo uno pendiente a la vez)
+    private synchronized void scheduleReconnect() {
+        if (closing || pendingReconnect != null) {
+            return;
         }
+        long techo = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attempts, 20));
+        long espera = ThreadLocalRandom.current().nextLong(techo + 1);
+        attempts++;
+        String now = now();
+        gui.appendSystemMessage(String.format("[%s] Reintentando la conexión en %.1f s (intento %d)", now, espera / 1000.0, attempts));
+        pendingReconnect = reconnector.schedule(() -> {
+            synchronized (this) {
+                pendingReconnect = null;
+            }
+            connect();
+        }, espera, TimeUnit.MILLISECONDS);
+    }
+
+    // Se ofrece primero el formato binario; un servidor antiguo lo ignora y se sigue usando JSON
+    private static ClientEndpointConfig endpointConfig() {
+        return ClientEndpointConfig.Builder.create()
+                .preferredSubprotocols(List.of(BinaryMessageCodec.SUBPROTOCOL, BinaryMessageCodec.JSON_SUBPROTOCOL))
+                .extensions(PerMessageDeflate.ENABLED ? List.of(PerMessageDeflate.client()) : List.of())
+                .build();
     }
 
-    @OnOpen
     public void onOpen(Session session) {
         this.session = session;
-        String now = java.time.LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
-        gui.appendSystemMessage(String.format("[%s] Conectado al servidor de chat", now));
-        // Enviar el nombre elegido al servidor para que lo registre y lo use en la lista de usuarios
-        try {
-            Message setName = new Message(username, "", "SET_NAME");
-            session.getBasicRemote().sendText(gson.toJson(setName));
-        } catch (Exception e) {
-            gui.appendSystemMessage("Error al enviar nombre al servidor: " + e.getMessage());
+        ClientOutbox nueva = new ClientOutbox(session, this::sendFailed);
+        this.outbox = nueva;
+        boolean reconexion;
+        synchronized (this) {
+            reconexion = attempts > 0;
+            attempts = 0;
         }
-        // registrar el timestamp de conexión para filtrar mensajes temporales del servidor
-        connectedAt = System.currentTimeMillis();
+        // El estado por conexión se reinicia en el hilo de entrada, detrás de lo que quedara de la anterior
+        enqueueInbound((Runnable) () -> {
+            firstLiveSeq = 0;
+            presenceVersion = -1;
+            String now = now();
+            gui.appendSystemMessage(String.format(reconexion ? "[%s] Reconectado al servidor de chat" : "[%s] Conectado al servidor de chat", now));
+            ServerDiscovery.Node nodo = discovery != null ? discovery.current() : null;
+            if (nodo != null && nodo.sessions >= 0) {
+                gui.appendSystemMessage(String.format("[%s] Nodo %s (%d sesiones)", now, nodo.id, nodo.sessions));
+            }
+            // Enviar el nombre elegido al servidor para que lo registre y lo use en la lista de usuarios;
+            // tras una caída se presenta el token para recuperar nombre y salas sin anunciar salida y entrada.
+            // En ambos casos se piden los mensajes posteriores al último recibido
+            try {
+                Message setName = resumeToken != null
+                        ? new Message(username, resumeToken, "RESUME")
+                        : new Message(username, "", "SET_NAME");
+                send(setName);
+                Message history = new Message(username, "", "HISTORY");
+                history.setSeq(lastSeq);
+                send(history);
+            } catch (Exception e) {
+                gui.appendSystemMessage("Error al enviar nombre al servidor: " + e.getMessage());
+            }
+            // registrar el timestamp de conexión para filtrar mensajes temporales del servidor
+            connectedAt = System.currentTimeMillis();
+        });
+    }
+
+    // En el hilo del contenedor: solo encolar
+    public void onMessage(String texto) {
+        enqueueInbound(texto);
     }
 
-    @OnMessage
-    public void onMessage(String mensaje) {
+    public void onBinaryMessage(ByteBuffer datos) {
+        enqueueInbound(datos);
+    }
+
+    private void enqueueInbound(Object item) {
         try {
-            Message mensajeObj = gson.fromJson(mensaje, Message.class);
-            String tipo = mensajeObj.getTipo();
-            String time = "";
-            if (mensajeObj.getHora() != null) {
-                time = mensajeObj.getHora().format(DateTimeFormatter.ofPattern("HH:mm"));
+            inbound.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Hilo chat-inbound: pasa a la caché del servidor al que se va a conectar. Con mostrar, lo guardado
+    // se muestra como si llegara del historial; si no, solo se toma de ella la última secuencia
+    private void useCache(MessageCache abierta, boolean mostrar) {
+        MessageCache anterior = cache;
+        if (anterior != null) {
+            anterior.close();
+        }
+        cache = abierta;
+        List<Message> guardados = abierta != null ? abierta.load() : List.of();
+        if (!mostrar) {
+            lastSeq = guardados.isEmpty() ? 0 : guardados.get(guardados.size() - 1).getSeq();
+            return;
+        }
+        if (guardados.isEmpty()) {
+            return;
+        }
+        gui.appendSystemMessage(String.format("[%s] Historial guardado en este equipo (%d mensajes)", now(), guardados.size()));
+        for (Message m : guardados) {
+            try {
+                handleMessage(m, true);
+            } catch (IOException e) {
+                // solo muestra: no envía nada
             }
+        }
+    }
 
-            // Filtrar mensajes temporales que el servidor pueda haber enviado antes de recibir SET_NAME
-            // (p. ej. "Usuario1"). Si el mensaje llega muy pronto después de conectarse y contiene
-            // nombres temporales del tipo Usuario<digitos>, lo ignoramos.
-            boolean isTempName = false;
-            if (mensajeObj.getUsuario() != null && mensajeObj.getUsuario().matches("Usuario\\d+")) {
-                isTempName = true;
+    // Hilo chat-inbound: el servidor va por detrás de nuestra última secuencia, así que numera de nuevo
+    // (p. ej. reiniciado sin registro). Lo guardado ya no sirve para pedir ni para descartar repetidos:
+    // se vacía la caché y se pide todo su historial (el HISTORY enviado al conectar no devolvió nada)
+    private void renumbered(String time) throws IOException {
+        lastSeq = 0;
+        MessageCache c = cache;
+        if (c != null) {
+            c.reset();
+        }
+        gui.appendSystemMessage(String.format("[%s] El servidor ha reiniciado su numeración de mensajes", time));
+        Message history = new Message(username, "", "HISTORY");
+        history.setSeq(0L);
+        send(history);
+    }
+
+    // Hilo chat-inbound: decodifica y aplica cada frame en orden de llegada
+    private void processInbound() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Object item;
+            try {
+                item = inbound.take();
+            } catch (InterruptedException e) {
+                return;
             }
-            if (mensajeObj.getContenido() != null && mensajeObj.getContenido().matches(".*Usuario\\d+.*")) {
-                isTempName = true;
+            try {
+                if (item instanceof Runnable) {
+                    ((Runnable) item).run();
+                } else if (item instanceof ByteBuffer) {
+                    handleMessage(BinaryMessageCodec.decode((ByteBuffer) item), false);
+                } else {
+                    handleMessage(MessageCodec.decode((String) item), false);
+                }
+            } catch (Exception e) {
+                gui.appendSystemMessage("Error al procesar mensaje entrante: " + e.getMessage());
             }
+        }
+    }
 
-            if (("INFO".equalsIgnoreCase(tipo) || "CONEXION".equalsIgnoreCase(tipo) || "DESCONEXION".equalsIgnoreCase(tipo))
-                    && isTempName && (System.currentTimeMillis() - connectedAt) < 2000) {
-                // ignoramos mensaje temporal
-                return;
+    // Encola para enviar en el formato negociado al conectar; no espera a la red
+    private void send(Message mensaje) throws IOException {
+        ClientOutbox o = outbox;
+        if (o == null || !o.offer(mensaje)) {
+            Session s = session;
+            throw new IOException(s != null && s.isOpen() ? "cola de salida llena" : "sin conexión con el servidor");
+        }
+    }
+
+    // Callback de un envío fallido (hilo del contenedor)
+    private void sendFailed(Throwable e) {
+        gui.appendSystemMessage(String.format("[%s] Error al enviar mensaje: %s", now(), e != null ? e.getMessage() : "desconocido"));
+    }
+
+    private static String now() {
+        return HORA.format(Instant.now());
+    }
+
+    private void handleMessage(Message mensajeObj, boolean fromHistory) throws IOException {
+        String tipo = mensajeObj.getTipo();
+        if ("RESUME".equalsIgnoreCase(tipo)) {
+            resumeToken = mensajeObj.getContenido();
+            return;
+        }
+        if ("HISTORY".equalsIgnoreCase(tipo)) {
+            if (mensajeObj.getLote() != null) {
+                for (Message m : mensajeObj.getLote()) {
+                    handleMessage(m, true);
+                }
             }
+            return;
+        }
+        // Frames agrupados por el servidor: se procesan en orden como si hubieran llegado por separado
+        if ("BATCH".equalsIgnoreCase(tipo)) {
+            if (mensajeObj.getLote() != null) {
+                for (Message m : mensajeObj.getLote()) {
+                    handleMessage(m, fromHistory);
+                }
+            }
+            return;
+        }
+        if ("MENSAJE".equalsIgnoreCase(tipo) && mensajeObj.getSeq() != null) {
+            long seq = mensajeObj.getSeq();
+            if (fromHistory && firstLiveSeq > 0 && seq >= firstLiveSeq) {
+                return; // ya llegó en vivo
+            }
+            if (!fromHistory && firstLiveSeq == 0) {
+                firstLiveSeq = seq;
+            }
+            lastSeq = Math.max(lastSeq, seq);
+            if (cache != null) {
+                cache.append(mensajeObj);
+            }
+        }
+        String time = "";
+        if (mensajeObj.getHora() != 0) {
+            time = HORA.format(Instant.ofEpochMilli(mensajeObj.getHora()));
+        }
 
-            if ("INFO".equalsIgnoreCase(tipo)) {
-                // El servidor envía: "Usuarios conectados: user1, user2"
-                String contenido = mensajeObj.getContenido();
-                if (contenido != null && contenido.contains(":")) {
-                    String after = contenido.substring(contenido.indexOf(":") + 1).trim();
-                    List<String> users = Arrays.asList(after.split("\\s*,\\s*"));
-                    gui.updateUserList(users);
-                    gui.appendSystemMessage(String.format("[%s] %s", time, mensajeObj.getContenido()));
-                } else {
-                    gui.appendSystemMessage(String.format("[%s] %s", time, mensajeObj.getContenido()));
+        // Filtrar mensajes temporales que el servidor pueda haber enviado antes de recibir SET_NAME
+        // (p. ej. "Usuario1"). Si el mensaje llega muy pronto después de conectarse y contiene
+        // nombres temporales del tipo Usuario<digitos>, lo ignoramos.
+        // Solo se comprueba en los primeros 2 s y en los tipos afectados, con el patrón ya compilado
+        if (("INFO".equalsIgnoreCase(tipo) || "CONEXION".equalsIgnoreCase(tipo) || "DESCONEXION".equalsIgnoreCase(tipo))
+                && (System.currentTimeMillis() - connectedAt) < 2000 && isTempName(mensajeObj)) {
+            // ignoramos mensaje temporal
+            return;
+        }
+
+        if ("PRESENCE_SNAPSHOT".equalsIgnoreCase(tipo)) {
+            presenceVersion = mensajeObj.getVersion() != null ? mensajeObj.getVersion() : 0;
+            gui.updateUserList(mensajeObj.getUsuarios());
+            if (mensajeObj.getSeq() != null && mensajeObj.getSeq() < lastSeq) {
+                renumbered(time);
+            }
+        } else if ("USER_JOINED".equalsIgnoreCase(tipo) || "USER_LEFT".equalsIgnoreCase(tipo)
+                || "USER_RENAMED".equalsIgnoreCase(tipo)) {
+            applyPresenceDelta(mensajeObj, time);
+        } else if ("INFO".equalsIgnoreCase(tipo)) {
+            gui.appendSystemMessage(String.format("[%s] %s", time, mensajeObj.getContenido()));
+        } else if ("CONEXION".equalsIgnoreCase(tipo) || "DESCONEXION".equalsIgnoreCase(tipo)) {
+            gui.appendSystemMessage(String.format("[%s] %s %s", time, mensajeObj.getUsuario(), mensajeObj.getContenido()));
+        } else if ("JOIN".equalsIgnoreCase(tipo) || "LEAVE".equalsIgnoreCase(tipo)) {
+            // Confirmación de una petición de esta sesión: entrar cambia de sala; salir solo si era la actual
+            String sala = mensajeObj.getSala();
+            if (username.equals(mensajeObj.getUsuario()) && sala != null) {
+                if ("JOIN".equalsIgnoreCase(tipo) && sala.equals(pendingJoin)) {
+                    pendingJoin = null;
+                    currentRoom = sala;
+                } else if ("LEAVE".equalsIgnoreCase(tipo) && sala.equals(pendingLeave)) {
+                    pendingLeave = null;
+                    if (sala.equals(currentRoom)) {
+                        currentRoom = "general";
+                    }
                 }
-            } else if ("CONEXION".equalsIgnoreCase(tipo) || "DESCONEXION".equalsIgnoreCase(tipo)) {
-                gui.appendSystemMessage(String.format("[%s] %s %s", time, mensajeObj.getUsuario(), mensajeObj.getContenido()));
-            } else if ("ERROR".equalsIgnoreCase(tipo)) {
-                gui.appendSystemMessage(String.format("[%s] ERROR: %s", time, mensajeObj.getContenido()));
-            } else {
-                // MENSAJE u otros
-                gui.appendMessage(mensajeObj.getUsuario(), time, mensajeObj.getContenido());
             }
-        } catch (Exception e) {
-            gui.appendSystemMessage("Error al procesar mensaje entrante: " + e.getMessage());
+            gui.appendSystemMessage(String.format("[%s] %s %s #%s", time, mensajeObj.getUsuario(),
+                    mensajeObj.getContenido(), mensajeObj.getSala()));
+        } else if ("ERROR".equalsIgnoreCase(tipo)) {
+            gui.appendSystemMessage(String.format("[%s] ERROR: %s", time, mensajeObj.getContenido()));
+        } else if ("SEARCH".equalsIgnoreCase(tipo)) {
+            showSearchResults(mensajeObj, time);
+        } else if ("DIRECT".equalsIgnoreCase(tipo)) {
+            // Privados; la copia de los propios (confirmación de entrega) lleva el destinatario
+            String contenido = username.equals(mensajeObj.getUsuario())
+                    ? "(privado para " + mensajeObj.getDestinatario() + ") " + mensajeObj.getContenido()
+                    : "(privado) " + mensajeObj.getContenido();
+            gui.appendMessage(mensajeObj.getUsuario(), time, contenido);
+        } else {
+            // MENSAJE u otros; los de otras salas se marcan con su nombre
+            String contenido = mensajeObj.getContenido();
+            if (mensajeObj.getSala() != null && !mensajeObj.getSala().equals(currentRoom)) {
+                contenido = "#" + mensajeObj.getSala() + " " + contenido;
+            }
+            gui.appendMessage(mensajeObj.getUsuario(), time, contenido);
+        }
+    }
+
+    private static boolean isTempName(Message m) {
+        return (m.getUsuario() != null && TEMP_NAME.matcher(m.getUsuario()).matches())
+                || (m.getContenido() != null && TEMP_NAME.matcher(m.getContenido()).find());
+    }
+
+    // Resultados de /search como mensajes de sistema, del más nuevo al más antiguo
+    private void showSearchResults(Message respuesta, String time) {
+        List<Message> resultados = respuesta.getLote() != null ? respuesta.getLote() : List.of();
+        searchCursor = respuesta.getSeq();
+        if (resultados.isEmpty()) {
+            gui.appendSystemMessage(String.format("[%s] Sin resultados para \"%s\"", time, respuesta.getContenido()));
+            return;
+        }
+        gui.appendSystemMessage(String.format("[%s] Resultados para \"%s\":", time, respuesta.getContenido()));
+        for (Message m : resultados) {
+            gui.appendSystemMessage(String.format("  [%s] #%s %s: %s", m.getHora() != 0 ? HORA.format(Instant.ofEpochMilli(m.getHora())) : "",
+                    m.getSala(), m.getUsuario(), m.getContenido()));
+        }
+        if (searchCursor != null) {
+            gui.appendSystemMessage("  Más resultados: /more");
         }
     }
 
-    @OnClose
-    public void onClose(Session session) {
-        String now = java.time.LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+    // Aplica un delta de presencia sobre la lista local. Los deltas ya incluidos en el snapshot se
+    // ignoran; si falta alguno se pide un snapshot nuevo en lugar de aplicar un estado incompleto.
+    private void applyPresenceDelta(Message delta, String time) throws IOException {
+        long version = delta.getVersion() != null ? delta.getVersion() : 0;
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            return;
+        }
+        if (version != presenceVersion + 1) {
+            presenceVersion = -1;
+            send(new Message(username, "", "PRESENCE"));
+            return;
+        }
+        presenceVersion = version;
+        String tipo = delta.getTipo();
+        if ("USER_JOINED".equalsIgnoreCase(tipo)) {
+            gui.addUser(delta.getUsuario());
+        } else if ("USER_LEFT".equalsIgnoreCase(tipo)) {
+            gui.removeUser(delta.getUsuario());
+        } else {
+            gui.renameUser(delta.getContenido(), delta.getUsuario());
+            gui.appendSystemMessage(String.format("[%s] %s ahora es %s", time, delta.getContenido(), delta.getUsuario()));
+        }
+    }
+
+    public void onClose(Session session, CloseReason closeReason) {
+        String now = now();
         gui.appendSystemMessage(String.format("[%s] Desconectado del servidor", now));
+        if (closing) {
+            return;
+        }
+        // Cerrada por exceso de mensajes: reconectar solo repetiría el abuso
+        if (closeReason != null && closeReason.getCloseCode().getCode() == CloseReason.CloseCodes.VIOLATED_POLICY.getCode()) {
+            gui.appendSystemMessage(String.format("[%s] %s", now, closeReason.getReasonPhrase()));
+            return;
+        }
+        scheduleReconnect();
     }
 
     public void sendMessage(String content) {
         try {
             // Validación de contenido
             if (content == null || content.trim().isEmpty()) {
-                String now = java.time.LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+                String now = now();
                 gui.appendSystemMessage(String.format("[%s] Error: Mensaje vacío", now));
                 return;
             }
             // Limitar longitud del mensaje
             if (content.length() > 500) {
                 content = content.substring(0, 500);
-                String now = java.time.LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+                String now = now();
                 gui.appendSystemMessage(String.format("[%s] Advertencia: Mensaje truncado a 500 caracteres", now));
             }
             
+            String trimmed = content.trim();
+            // Búsqueda en el historial: /search <consulta> y /more para la página siguiente
+            if (trimmed.startsWith("/search ") || trimmed.equals("/more")) {
+                Message busqueda = new Message(username, "", "SEARCH");
+                if (trimmed.equals("/more")) {
+                    if (lastSearch == null || searchCursor == null) {
+                        String now = now();
+                        gui.appendSystemMessage(String.format("[%s] No hay más resultados", now));
+                        return;
+                    }
+                    busqueda.setContenido(lastSearch);
+                    busqueda.setSeq(searchCursor);
+                } else {
+                    lastSearch = trimmed.substring(8).trim();
+                    busqueda.setContenido(lastSearch);
+                }
+                send(busqueda);
+                return;
+            }
+
+            // Mensaje privado: /msg <usuario> <texto>
+            if (trimmed.startsWith("/msg ")) {
+                String resto = trimmed.substring(5).trim();
+                int espacio = resto.indexOf(' ');
+                if (espacio <= 0) {
+                    String now = now();
+                    gui.appendSystemMessage(String.format("[%s] Uso: /msg <usuario> <mensaje>", now));
+                    return;
+                }
+                Message directo = new Message(username, resto.substring(espacio + 1).trim(), "DIRECT");
+                directo.setDestinatario(resto.substring(0, espacio));
+                send(directo);
+                return;
+            }
+
+            // Comandos de sala: /join <sala> y /leave [sala]
+            if (trimmed.startsWith("/join ") || trimmed.equals("/leave") || trimmed.startsWith("/leave ")) {
+                boolean join = trimmed.startsWith("/join ");
+                String room = trimmed.substring(6).trim(); // "/join " y "/leave" miden 6
+                if (room.isEmpty()) {
+                    room = currentRoom;
+                }
+                Message roomRequest = new Message(username, "", join ? "JOIN" : "LEAVE");
+                roomRequest.setSala(room);
+                // La sala actual cambia cuando el servidor confirma (ver handleMessage); se guarda
+                // normalizada como en el servidor para reconocer la confirmación
+                if (join) {
+                    pendingJoin = room.trim().toLowerCase();
+                } else {
+                    pendingLeave = room.trim().toLowerCase();
+                }
+                send(roomRequest);
+                return;
+            }
+
             Message message = new Message(username, content, "MENSAJE");
-            session.getBasicRemote().sendText(gson.toJson(message));
+            message.setSala(currentRoom);
+            send(message);
         } catch (Exception e) {
-            String now = java.time.LocalDateTime.now().format(DateTimeFormatter.ofPattern("HH:mm"));
+            String now = now();
             gui.appendSystemMessage(String.format("[%s] Error al enviar mensaje: %s", now, e.getMessage()));
         }
     }
 
     public void disconnect() {
+        closing = true;
+        reconnector.shutdownNow();
+        inboundWorker.interrupt();
+        MessageCache c = cache;
+        if (c != null) {
+            c.close();
+        }
         try {
             if (session != null) {
                 session.close();
@@ -221,19 +600,4 @@ public class ChatClient {
             e.printStackTrace();
         }
     }
-
-    // Clase interna para manejar la serialización/deserialización de LocalDateTime
-    private static class LocalDateTimeAdapter implements JsonSerializer<LocalDateTime>, JsonDeserializer<LocalDateTime> {
-        private static final DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
-
-        @Override
-        public JsonElement serialize(LocalDateTime localDateTime, java.lang.reflect.Type type, com.google.gson.JsonSerializationContext jsonSerializationContext) {
-            return new JsonPrimitive(formatter.format(localDateTime));
-        }
-
-        @Override
-        public LocalDateTime deserialize(com.google.gson.JsonElement jsonElement, java.lang.reflect.Type type, com.google.gson.JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
-            return LocalDateTime.parse(jsonElement.getAsString(), formatter);
-        }
-    }
 }
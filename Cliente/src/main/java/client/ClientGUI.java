@@ -4,11 +4,27 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.awt.event.*;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ClientGUI extends JFrame {
-    private JPanel messagePanel;
+    // Mensajes que se conservan en pantalla; los más antiguos se descartan
+    private static final int MAX_MESSAGES = Math.max(50, Integer.getInteger("chat.gui.maxMessages", 1000));
+    // Los mensajes que llegan en el mismo intervalo se añaden juntos, en una sola pasada por el EDT
+    private static final int FRAME_MS = Math.max(1, Integer.getInteger("chat.gui.frameMs", 16));
+
+    // Lista virtualizada: el modelo guarda solo datos y un único renderer pinta las filas visibles
+    private DefaultListModel<ChatRow> messageModel;
+    private JList<ChatRow> messageList;
     private JScrollPane chatScroll;
     private JTextArea messageArea;
     private JButton sendButton;
@@ -23,6 +39,17 @@ public class ClientGUI extends JFrame {
     private static final Color BG_OTHER = Color.WHITE;
     private static final Color SYSTEM_GRAY = new Color(0xEEEEEE);
 
+    // Filas pendientes de añadir; las encolan los hilos de red y las vacía flushRows en el EDT
+    private final Queue<ChatRow> pendingRows = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "chat-gui-flush");
+        t.setDaemon(true);
+        return t;
+    });
+    // Avatares ya pintados, por iniciales (solo desde el EDT)
+    private final Map<String, Icon> avatars = new HashMap<>();
+
     public ClientGUI() {
         username = JOptionPane.showInputDialog("Ingrese su nombre de usuario:");
         if (username == null || username.trim().isEmpty()) {
@@ -40,14 +67,36 @@ public class ClientGUI extends JFrame {
 
         // (Top bar with change-name removed — username is set at startup and sent to server)
 
-    // Panel donde se añadirán las burbujas de mensaje
-        messagePanel = new JPanel();
-        messagePanel.setLayout(new BoxLayout(messagePanel, BoxLayout.Y_AXIS));
-        messagePanel.setBackground(BG_WINDOW);
-    // reducir márgenes del panel de mensajes
-    messagePanel.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
-        chatScroll = new JScrollPane(messagePanel);
+        // Lista de mensajes: solo se construyen y pintan las filas visibles
+        messageModel = new DefaultListModel<>();
+        messageList = new JList<>(messageModel);
+        messageList.setCellRenderer(new MessageRenderer());
+        messageList.setBackground(BG_WINDOW);
+        messageList.setFocusable(false);
+        messageList.setSelectionModel(new DefaultListSelectionModel() {
+            @Override
+            public void setSelectionInterval(int index0, int index1) {
+                // los mensajes no se seleccionan
+            }
+        });
+        messageList.setBorder(BorderFactory.createEmptyBorder(4, 4, 4, 4));
+        chatScroll = new JScrollPane(messageList);
         chatScroll.setBorder(BorderFactory.createEmptyBorder());
+        chatScroll.getViewport().setBackground(BG_WINDOW);
+        // Al cambiar el ancho cambia el ajuste de línea: la lista vuelve a medir las filas
+        chatScroll.getViewport().addComponentListener(new ComponentAdapter() {
+            private int lastWidth = -1;
+
+            @Override
+            public void componentResized(ComponentEvent e) {
+                int width = chatScroll.getViewport().getWidth();
+                if (width != lastWidth) {
+                    lastWidth = width;
+                    messageList.setFixedCellHeight(10);
+                    messageList.setFixedCellHeight(-1);
+                }
+            }
+        });
         add(chatScroll, BorderLayout.CENTER);
 
         // Panel lateral para lista de usuarios
@@ -117,89 +166,53 @@ public class ClientGUI extends JFrame {
         }
     }
 
-    // Añade una burbuja de mensaje al panel
+    // Añade una burbuja de mensaje (se puede llamar desde cualquier hilo)
     public void appendMessage(String user, String time, String content) {
-        SwingUtilities.invokeLater(() -> {
-            boolean isMine = user != null && user.equals(username);
-            // Agrupación simple: si el último mensaje fue del mismo usuario, no mostrar nombre de nuevo
-            boolean showName = true;
-            if (messagePanel.getComponentCount() > 0) {
-                Component last = messagePanel.getComponent(messagePanel.getComponentCount() - 1);
-                if (last instanceof JComponent) {
-                    Object lastSender = ((JComponent) last).getClientProperty("sender");
-                    if (lastSender instanceof String && ((String) lastSender).equals(user)) {
-                        showName = false;
-                    }
-                }
-            }
-
-            JPanel bubble = new RoundedPanel(isMine ? BG_ME : BG_OTHER, 12);
-            bubble.setLayout(new BorderLayout(6, 0));
-            // smaller inner padding to make bubbles compact
-            bubble.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
-
-            // Texto y nombre (solo para otros y si corresponde)
-            if (!isMine && showName) {
-                JLabel nameLabel = new JLabel(user);
-                nameLabel.setFont(nameLabel.getFont().deriveFont(Font.BOLD, 12f));
-                bubble.add(nameLabel, BorderLayout.NORTH);
-            }
-
-            JTextArea contentArea = new JTextArea(content);
-            contentArea.setLineWrap(true);
-            contentArea.setWrapStyleWord(true);
-            contentArea.setEditable(false);
-            contentArea.setOpaque(false);
-            bubble.add(contentArea, BorderLayout.CENTER);
-
-            JLabel timeLabel = new JLabel(time);
-            timeLabel.setFont(timeLabel.getFont().deriveFont(10f));
-            timeLabel.setForeground(Color.DARK_GRAY);
-            bubble.add(timeLabel, BorderLayout.SOUTH);
-
-            // Avatar
-            JLabel avatar = new JLabel(createAvatarIcon(user));
-
-            // Usar FlowLayout para un alineado más natural
-            // Use minimal hgap/vgap to reduce vertical spacing between messages
-            JPanel container = new JPanel(new FlowLayout(isMine ? FlowLayout.RIGHT : FlowLayout.LEFT, 6, 0));
-            container.setOpaque(false);
-            if (isMine) {
-                container.add(bubble);
-                container.add(avatar);
-            } else {
-                container.add(avatar);
-                container.add(bubble);
-            }
-            // marcar el panel con el sender para agrupación
-            container.putClientProperty("sender", user);
-            // permitir que el contenedor ocupe todo el ancho disponible y evitar espacios extras
-            container.setMaximumSize(new Dimension(Integer.MAX_VALUE, container.getPreferredSize().height));
-            container.setAlignmentX(Component.LEFT_ALIGNMENT);
-
-            messagePanel.add(container);
-            messagePanel.revalidate();
-            JScrollBar v = chatScroll.getVerticalScrollBar();
-            v.setValue(v.getMaximum());
-        });
+        enqueue(new ChatRow(user, time, content, false));
     }
 
     // Mensaje del sistema (centrado y gris)
     public void appendSystemMessage(String message) {
-        SwingUtilities.invokeLater(() -> {
-            JPanel row = new JPanel(new FlowLayout(FlowLayout.CENTER, 0, 0));
-            row.setOpaque(false);
-            JLabel lbl = new JLabel(message);
-            lbl.setFont(lbl.getFont().deriveFont(Font.ITALIC, 12f));
-            lbl.setOpaque(true);
-            lbl.setBackground(SYSTEM_GRAY);
-            lbl.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
-            row.add(lbl);
-            messagePanel.add(row);
-            messagePanel.revalidate();
-            JScrollBar v = chatScroll.getVerticalScrollBar();
-            v.setValue(v.getMaximum());
-        });
+        enqueue(new ChatRow(null, null, message, true));
+    }
+
+    // Solo el primer mensaje de un intervalo programa el volcado; los siguientes viajan con él
+    private void enqueue(ChatRow row) {
+        pendingRows.add(row);
+        if (flushScheduled.compareAndSet(false, true)) {
+            flushScheduler.schedule(() -> SwingUtilities.invokeLater(this::flushRows), FRAME_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // En el EDT: añade todo lo pendiente con un único evento del modelo y recorta el historial
+    private void flushRows() {
+        flushScheduled.set(false);
+        List<ChatRow> batch = new ArrayList<>();
+        ChatRow prev = messageModel.isEmpty() ? null : messageModel.lastElement();
+        ChatRow row;
+        while ((row = pendingRows.poll()) != null) {
+            // Agrupación simple: si el último mensaje fue del mismo usuario, no mostrar nombre de nuevo
+            row.showName = row.system || prev == null || prev.system || !Objects.equals(prev.user, row.user);
+            batch.add(row);
+            prev = row;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        JScrollBar v = chatScroll.getVerticalScrollBar();
+        boolean atBottom = v.getValue() + v.getVisibleAmount() >= v.getMaximum() - 16;
+        if (batch.size() > MAX_MESSAGES) {
+            batch = batch.subList(batch.size() - MAX_MESSAGES, batch.size());
+        }
+        int excess = messageModel.size() + batch.size() - MAX_MESSAGES;
+        if (excess > 0) {
+            messageModel.removeRange(0, excess - 1);
+        }
+        messageModel.addAll(batch);
+        // Solo se baja al final si ya se estaba ahí: quien lee mensajes antiguos no pierde el sitio
+        if (atBottom) {
+            messageList.ensureIndexIsVisible(messageModel.size() - 1);
+        }
     }
 
     // Actualizar lista de usuarios conectados
@@ -216,16 +229,43 @@ public class ClientGUI extends JFrame {
         });
     }
 
-    // Genera un icono circular con iniciales
-    private Icon createAvatarIcon(String user) {
-        int size = 36;
+    // Deltas de presencia: modifican la lista sin reconstruirla
+    public void addUser(String user) {
+        if (user == null || user.trim().isEmpty()) return;
+        SwingUtilities.invokeLater(() -> userListModel.addElement(user.trim()));
+    }
+
+    public void removeUser(String user) {
+        if (user == null) return;
+        SwingUtilities.invokeLater(() -> userListModel.removeElement(user.trim()));
+    }
+
+    public void renameUser(String oldName, String newName) {
+        if (oldName == null || newName == null) return;
+        SwingUtilities.invokeLater(() -> {
+            int idx = userListModel.indexOf(oldName.trim());
+            if (idx >= 0) {
+                userListModel.set(idx, newName.trim());
+            } else {
+                userListModel.addElement(newName.trim());
+            }
+        });
+    }
+
+    // Avatar del usuario: se pinta una vez por iniciales y se reutiliza
+    private Icon avatarFor(String user) {
         String initials = "?";
         if (user != null && !user.trim().isEmpty()) {
             String[] parts = user.trim().split("\\s+");
             if (parts.length == 1) initials = parts[0].substring(0, 1).toUpperCase();
             else initials = (parts[0].substring(0, 1) + parts[parts.length - 1].substring(0, 1)).toUpperCase();
         }
+        return avatars.computeIfAbsent(initials, ClientGUI::createAvatarIcon);
+    }
 
+    // Genera un icono circular con iniciales
+    private static Icon createAvatarIcon(String initials) {
+        int size = 36;
         BufferedImage img = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = img.createGraphics();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
@@ -243,7 +283,7 @@ public class ClientGUI extends JFrame {
 
     // Panel con fondo redondeado
     private static class RoundedPanel extends JPanel {
-        private final Color color;
+        private Color color;
         private final int radius;
 
         public RoundedPanel(Color color, int radius) {
@@ -252,6 +292,10 @@ public class ClientGUI extends JFrame {
             setOpaque(false);
         }
 
+        void setColor(Color color) {
+            this.color = color;
+        }
+
         @Override
         protected void paintComponent(Graphics g) {
             Graphics2D g2 = (Graphics2D) g.create();
@@ -268,6 +312,108 @@ public class ClientGUI extends JFrame {
         }
     }
 
+    // Una fila de la lista de mensajes: solo los datos, sin componentes
+    private static final class ChatRow {
+        final String user;
+        final String time;
+        final String content;
+        final boolean system;
+        boolean showName;
+        // Tamaño del texto ya ajustado a measuredWidth, para no volver a medirlo en cada pasada de la lista
+        int measuredWidth = -1;
+        Dimension textSize;
+
+        ChatRow(String user, String time, String content, boolean system) {
+            this.user = user;
+            this.time = time;
+            this.content = content == null ? "" : content;
+            this.system = system;
+        }
+    }
+
+    // Un único juego de componentes que se reconfigura para cada fila que la lista mide o pinta
+    private final class MessageRenderer implements ListCellRenderer<ChatRow> {
+        private final FlowLayout rowLayout = new FlowLayout(FlowLayout.LEFT, 6, 0);
+        private final JPanel row = new JPanel(rowLayout);
+        private final RoundedPanel bubble = new RoundedPanel(BG_OTHER, 12);
+        private final JLabel nameLabel = new JLabel();
+        private final JTextArea contentArea = new JTextArea();
+        private final JLabel timeLabel = new JLabel();
+        private final JLabel avatar = new JLabel();
+        private final JLabel systemLabel = new JLabel();
+
+        MessageRenderer() {
+            row.setOpaque(false);
+            bubble.setLayout(new BorderLayout(6, 0));
+            // smaller inner padding to make bubbles compact
+            bubble.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
+            nameLabel.setFont(nameLabel.getFont().deriveFont(Font.BOLD, 12f));
+            contentArea.setLineWrap(true);
+            contentArea.setWrapStyleWord(true);
+            contentArea.setEditable(false);
+            contentArea.setOpaque(false);
+            timeLabel.setFont(timeLabel.getFont().deriveFont(10f));
+            timeLabel.setForeground(Color.DARK_GRAY);
+            bubble.add(nameLabel, BorderLayout.NORTH);
+            bubble.add(contentArea, BorderLayout.CENTER);
+            bubble.add(timeLabel, BorderLayout.SOUTH);
+            systemLabel.setFont(systemLabel.getFont().deriveFont(Font.ITALIC, 12f));
+            systemLabel.setOpaque(true);
+            systemLabel.setBackground(SYSTEM_GRAY);
+            systemLabel.setBorder(BorderFactory.createEmptyBorder(2, 6, 2, 6));
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends ChatRow> list, ChatRow r, int index,
+                                                      boolean isSelected, boolean cellHasFocus) {
+            row.removeAll();
+            if (r.system) {
+                rowLayout.setAlignment(FlowLayout.CENTER);
+                systemLabel.setText(r.content);
+                row.add(systemLabel);
+                return row;
+            }
+            boolean isMine = r.user != null && r.user.equals(username);
+            rowLayout.setAlignment(isMine ? FlowLayout.RIGHT : FlowLayout.LEFT);
+            bubble.setColor(isMine ? BG_ME : BG_OTHER);
+            nameLabel.setText(r.user);
+            nameLabel.setVisible(!isMine && r.showName);
+            timeLabel.setText(r.time);
+            contentArea.setText(r.content);
+            // La burbuja ocupa como mucho el 70 % del ancho visible y el texto se ajusta dentro
+            int viewport = chatScroll.getViewport().getWidth();
+            int maxWidth = Math.max(120, (viewport > 0 ? viewport : 480) * 7 / 10);
+            if (r.measuredWidth != maxWidth) {
+                r.textSize = measure(r.content, maxWidth);
+                r.measuredWidth = maxWidth;
+            }
+            contentArea.setPreferredSize(r.textSize);
+            avatar.setIcon(avatarFor(r.user));
+            if (isMine) {
+                row.add(bubble);
+                row.add(avatar);
+            } else {
+                row.add(avatar);
+                row.add(bubble);
+            }
+            return row;
+        }
+
+        // Ancho de la línea más larga (con tope) y alto que resulta al ajustar el texto a ese ancho
+        private Dimension measure(String text, int maxWidth) {
+            FontMetrics fm = contentArea.getFontMetrics(contentArea.getFont());
+            Insets in = contentArea.getInsets();
+            int width = 0;
+            for (String line : text.split("\n", -1)) {
+                width = Math.max(width, fm.stringWidth(line));
+            }
+            width = Math.min(maxWidth, width + in.left + in.right + 2);
+            contentArea.setPreferredSize(null);
+            contentArea.setSize(width, Short.MAX_VALUE);
+            return new Dimension(width, contentArea.getPreferredSize().height);
+        }
+    }
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             new ClientGUI().setVisible(true);
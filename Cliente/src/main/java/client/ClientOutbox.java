@@ -0,0 +1,102 @@
+package client;
+
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import protocol.BinaryMessageCodec;
+import protocol.Message;
+import protocol.MessageCodec;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Cola de salida del cliente para una sesión. {@link #offer(Message)} codifica en el formato
+ * negociado y encola sin bloquear; los frames salen de uno en uno por {@code getAsyncRemote()} y el
+ * callback de cada envío lanza el siguiente. Así quien envía (el hilo de Swing) nunca espera a la red.
+ *
+ * <p>La cola está acotada por {@code chat.client.outboxCapacity}: si la conexión se atasca y se
+ * llena, el mensaje nuevo se rechaza y se avisa, en lugar de acumular sin límite.
+ */
+final class ClientOutbox {
+    static final int CAPACITY = Math.max(1, Integer.getInteger("chat.client.outboxCapacity", 256));
+
+    private final Session session;
+    private final boolean binary;
+    private final Consumer<Throwable> onError;
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private volatile boolean closed;
+
+    /** @param onError se llama (desde el hilo del contenedor) si un envío falla */
+    ClientOutbox(Session session, Consumer<Throwable> onError) {
+        this.session = session;
+        this.binary = BinaryMessageCodec.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol());
+        this.onError = onError;
+    }
+
+    /**
+     * Encola un mensaje. Nunca bloquea.
+     *
+     * @return {@code false} si la sesión ya no está abierta o la cola está llena
+     */
+    boolean offer(Message mensaje) {
+        if (closed || !session.isOpen()) {
+            return false;
+        }
+        if (depth.incrementAndGet() > CAPACITY) {
+            depth.decrementAndGet();
+            return false;
+        }
+        queue.add(binary ? BinaryMessageCodec.encode(mensaje) : MessageCodec.encode(mensaje));
+        drain();
+        return true;
+    }
+
+    // Solo un envío en vuelo; quien gana el indicador envía el siguiente frame de la cola
+    private void drain() {
+        while (!closed && !queue.isEmpty() && sending.compareAndSet(false, true)) {
+            Object frame = queue.poll();
+            if (frame == null) {
+                sending.set(false);
+                continue;
+            }
+            depth.decrementAndGet();
+            try {
+                if (frame instanceof ByteBuffer) {
+                    session.getAsyncRemote().sendBinary((ByteBuffer) frame, this::completed);
+                } else {
+                    session.getAsyncRemote().sendText((String) frame, this::completed);
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+            return;
+        }
+    }
+
+    private void completed(SendResult result) {
+        if (!result.isOK()) {
+            fail(result.getException());
+            return;
+        }
+        sending.set(false);
+        drain();
+    }
+
+    // Un envío fallido deja la sesión inservible: se descarta lo pendiente y la reconexión vuelve a empezar
+    private void fail(Throwable e) {
+        close();
+        onError.accept(e);
+    }
+
+    void close() {
+        closed = true;
+        queue.clear();
+        depth.set(0);
+    }
+}
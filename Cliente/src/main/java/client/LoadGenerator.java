@@ -0,0 +1,424 @@
+package client;
+
+import protocol.BinaryMessageCodec;
+import protocol.Message;
+import protocol.MessageCodec;
+import protocol.PerMessageDeflate;
+
+import jakarta.websocket.ClientEndpointConfig;
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.EndpointConfig;
+import jakarta.websocket.MessageHandler;
+import jakarta.websocket.SendHandler;
+import jakarta.websocket.Session;
+import org.glassfish.tyrus.client.ClientManager;
+import org.glassfish.tyrus.client.ClientProperties;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generador de carga sin interfaz: abre muchas conexiones con el cliente Tyrus, registra un nombre
+ * en cada una ({@code SET_NAME}) y envía mensajes de chat a ritmo abierto, es decir, a las horas que
+ * marca el perfil aunque el servidor vaya retrasado.
+ *
+ * <p>Cada mensaje lleva en el contenido el instante en que <em>debía</em> enviarse; al recibirlo
+ * cualquier conexión se mide la latencia extremo a extremo desde ese instante, de modo que los
+ * retrasos del propio generador también cuentan (sin omisión coordinada). Al terminar se imprime
+ * la distribución de percentiles con el formato de HdrHistogram, el rendimiento y los fallos.
+ *
+ * <p>Uso: {@code java -Dchat.load.clients=2000 -Dchat.load.rate=5000 -cp ... client.LoadGenerator [uri]}
+ * (por defecto {@code ws://localhost:8025/websocket/chat}). Ver el README para todas las opciones.
+ */
+public class LoadGenerator {
+    private static final String MARK = "LOAD:";
+
+    /** Forma del ritmo de envío a lo largo de la prueba. */
+    enum Profile {
+        /** Ritmo fijo. */
+        CONSTANT,
+        /** De 0 al ritmo indicado, linealmente durante toda la prueba. */
+        RAMP,
+        /** Cuatro escalones iguales: 25 %, 50 %, 75 % y 100 % del ritmo. */
+        STEPS,
+        /** El ritmo indicado, con un pico de {@code chat.load.burstFactor} veces durante 1 s de cada 10. */
+        BURST;
+
+        double rate(double base, double elapsed, double duration) {
+            switch (this) {
+                case RAMP:
+                    return base * Math.min(1, elapsed / duration);
+                case STEPS:
+                    return base * Math.min(4, (int) (elapsed / duration * 4) + 1) / 4;
+                case BURST:
+                    return elapsed % 10 < 1 ? base * BURST_FACTOR : base;
+                case CONSTANT:
+                default:
+                    return base;
+            }
+        }
+    }
+
+    static final int CLIENTS = Integer.getInteger("chat.load.clients", 100);
+    static final int ROOMS = Math.max(1, Integer.getInteger("chat.load.rooms", 1));
+    static final double RATE = Double.parseDouble(System.getProperty("chat.load.rate", "100"));
+    static final Profile PROFILE = Profile.valueOf(System.getProperty("chat.load.profile", "constant").trim().toUpperCase(Locale.ROOT));
+    static final double BURST_FACTOR = Double.parseDouble(System.getProperty("chat.load.burstFactor", "5"));
+    static final int DURATION_S = Integer.getInteger("chat.load.duration", 30);
+    static final int WARMUP_S = Integer.getInteger("chat.load.warmup", 5);
+    static final double CONNECT_RATE = Double.parseDouble(System.getProperty("chat.load.connectRate", "500"));
+    static final int CONNECT_THREADS = Integer.getInteger("chat.load.connectThreads", 32);
+    static final int SIZE = Math.max(MARK.length() + 20, Math.min(500, Integer.getInteger("chat.load.size", 64)));
+    static final String FORMAT = System.getProperty("chat.load.format", "bin").trim().toLowerCase(Locale.ROOT);
+    static final long DRAIN_MS = Long.getLong("chat.load.drainMs", 2000);
+
+    private final URI uri;
+    private final ClientManager container = ClientManager.createClient();
+    private final List<LoadClient> clients = new ArrayList<>();
+    // Conexiones abiertas por sala: destinatarios esperados de cada envío
+    private final AtomicIntegerArray roomMembers = new AtomicIntegerArray(ROOMS);
+    private final String padding;
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    // Conexiones
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder closedEarly = new LongAdder();
+    private final LoadHistogram connectTimes = new LoadHistogram();
+    // Envíos y entregas dentro de la ventana de medida
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder serverErrors = new LongAdder();
+    private final LoadHistogram latency = new LoadHistogram();
+    // Histograma del intervalo en curso para el informe periódico
+    private final AtomicReference<LoadHistogram> interval = new AtomicReference<>(new LoadHistogram());
+    private volatile boolean stopping;
+
+    LoadGenerator(URI uri) {
+        this.uri = uri;
+        // Un único contenedor Grizzly para todas las conexiones en lugar de uno por conexión
+        container.getProperties().put(ClientProperties.SHARED_CONTAINER, true);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < SIZE) {
+            sb.append("abcdefghijklmnopqrstuvwxyz");
+        }
+        padding = sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        URI uri = new URI(args.length > 0 ? args[0] : "ws://localhost:8025/websocket/chat");
+        System.out.printf("Carga contra %s: %d conexiones en %d sala(s), %.0f msg/s (%s), %d s + %d s de calentamiento, %d bytes, formato %s%n",
+                uri, CLIENTS, ROOMS, RATE, PROFILE.name().toLowerCase(Locale.ROOT), DURATION_S, WARMUP_S, SIZE, FORMAT);
+        LoadGenerator generator = new LoadGenerator(uri);
+        generator.connectAll();
+        generator.run();
+        generator.report();
+        generator.shutdown();
+        System.exit(0);
+    }
+
+    // ---------------------------------------------------------------- conexiones
+
+    private void connectAll() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(CONNECT_THREADS, r -> {
+            Thread t = new Thread(r, "load-connect");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<LoadClient>> pending = new ArrayList<>(CLIENTS);
+        long start = System.nanoTime();
+        long gap = (long) (TimeUnit.SECONDS.toNanos(1) / Math.max(CONNECT_RATE, 1e-3));
+        for (int i = 0; i < CLIENTS; i++) {
+            long due = start + i * gap;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            int id = i;
+            if (i == 0) {
+                // La primera arranca el contenedor compartido: sola, para que las demás no esperen detrás
+                pending.add(CompletableFuture.completedFuture(connect(0)));
+            } else {
+                pending.add(pool.submit(() -> connect(id)));
+            }
+        }
+        for (Future<LoadClient> f : pending) {
+            try {
+                LoadClient c = f.get();
+                if (c != null) {
+                    clients.add(c);
+                }
+            } catch (Exception e) {
+                connectFailures.increment();
+            }
+        }
+        pool.shutdown();
+        long[] times = connectTimes.snapshot();
+        System.out.printf("Conectadas %d/%d en %.1f s (fallidas %d; handshake p50=%.1f ms p99=%.1f ms)%n",
+                clients.size(), CLIENTS, (System.nanoTime() - start) / 1e9, connectFailures.sum(),
+                LoadHistogram.quantile(times, 0.5, connectTimes.max()) / 1e6,
+                LoadHistogram.quantile(times, 0.99, connectTimes.max()) / 1e6);
+    }
+
+    private LoadClient connect(int id) {
+        LoadClient client = new LoadClient(id);
+        long start = System.nanoTime();
+        try {
+            container.connectToServer(client, config(), uri);
+        } catch (Exception e) {
+            connectFailures.increment();
+            if (connectFailures.sum() <= 5) {
+                System.err.println("Conexión " + id + " fallida: " + e);
+            }
+            return null;
+        }
+        connectTimes.record(System.nanoTime() - start);
+        try {
+            client.send(new Message(client.name, "", "SET_NAME"));
+            if (ROOMS > 1) {
+                Message join = new Message(client.name, "", "JOIN");
+                join.setSala(client.room);
+                client.send(join);
+            }
+        } catch (Exception e) {
+            connectFailures.increment();
+            return null;
+        }
+        roomMembers.incrementAndGet(client.roomIndex);
+        return client;
+    }
+
+    private static ClientEndpointConfig config() {
+        List<String> subprotocols = "json".equals(FORMAT)
+                ? List.of(BinaryMessageCodec.JSON_SUBPROTOCOL)
+                : List.of(BinaryMessageCodec.SUBPROTOCOL, BinaryMessageCodec.JSON_SUBPROTOCOL);
+        return ClientEndpointConfig.Builder.create()
+                .preferredSubprotocols(subprotocols)
+                .extensions(PerMessageDeflate.ENABLED ? List.of(PerMessageDeflate.client()) : List.of())
+                .build();
+    }
+
+    // ---------------------------------------------------------------- envío a ritmo abierto
+
+    // Un único hilo marca el ritmo: calcula la hora prevista de cada mensaje y envía todo lo que ya
+    // debería haber salido, con su hora prevista (no la real) en el contenido.
+    private void run() throws InterruptedException {
+        if (clients.isEmpty()) {
+            System.out.println("Sin conexiones: nada que medir");
+            return;
+        }
+        long start = System.nanoTime();
+        long warmupNanos = TimeUnit.SECONDS.toNanos(WARMUP_S);
+        long end = start + warmupNanos + TimeUnit.SECONDS.toNanos(DURATION_S);
+        measureFrom = start + warmupNanos;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long next = start;
+        int turn = 0;
+        long lastSent = 0;
+        long lastReceived = 0;
+        while (true) {
+            long now = System.nanoTime();
+            while (next <= now && next < end) {
+                // El calentamiento va a un cuarto del ritmo, sea cual sea el perfil
+                double rate = next < measureFrom ? RATE / 4 : PROFILE.rate(RATE, (next - measureFrom) / 1e9, DURATION_S);
+                if (rate <= 0) {
+                    next += TimeUnit.MILLISECONDS.toNanos(1);
+                    continue;
+                }
+                clients.get(turn++ % clients.size()).sendChat(next);
+                next += (long) (1e9 / rate);
+            }
+            if (now >= nextReport) {
+                long s = sent.sum();
+                long r = received.sum();
+                LoadHistogram h = interval.getAndSet(new LoadHistogram());
+                long[] c = h.snapshot();
+                System.out.printf("t=%3ds %s enviados/s=%-7d entregas/s=%-8d p50=%.2f ms p99=%.2f ms max=%.2f ms abiertas=%d errores=%d%n",
+                        TimeUnit.NANOSECONDS.toSeconds(now - start), now < measureFrom ? "(calentando)" : "            ",
+                        s - lastSent, r - lastReceived,
+                        LoadHistogram.quantile(c, 0.5, h.max()) / 1e6, LoadHistogram.quantile(c, 0.99, h.max()) / 1e6,
+                        h.max() / 1e6, openCount(), sendErrors.sum() + serverErrors.sum());
+                lastSent = s;
+                lastReceived = r;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+            if (now >= end) {
+                break;
+            }
+            long sleep = Math.min(next, nextReport) - System.nanoTime();
+            if (sleep > 0) {
+                TimeUnit.NANOSECONDS.sleep(Math.min(sleep, TimeUnit.MILLISECONDS.toNanos(1)));
+            }
+        }
+        // Dejar que lleguen las entregas en vuelo antes de cerrar el recuento
+        TimeUnit.MILLISECONDS.sleep(DRAIN_MS);
+        stopping = true;
+    }
+
+    private long openCount() {
+        long open = 0;
+        for (LoadClient c : clients) {
+            if (c.session != null && c.session.isOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    // ---------------------------------------------------------------- informe
+
+    private void report() {
+        double seconds = DURATION_S;
+        long s = sent.sum();
+        long r = received.sum();
+        long e = expected.sum();
+        System.out.println();
+        System.out.println("=== Resultado ===");
+        System.out.printf("Conexiones: solicitadas=%d abiertas=%d fallidas=%d cerradas durante la prueba=%d%n",
+                CLIENTS, clients.size(), connectFailures.sum(), closedEarly.sum());
+        System.out.printf("Enviados:   %d (%.1f msg/s), errores de envío=%d, errores del servidor=%d%n",
+                s, s / seconds, sendErrors.sum(), serverErrors.sum());
+        System.out.printf("Entregas:   %d de %d esperadas (%.1f/s, %.2f %% perdidas)%n",
+                r, e, r / seconds, e > 0 ? Math.max(0, e - r) * 100.0 / e : 0.0);
+        System.out.println();
+        System.out.println("Latencia extremo a extremo (ms), desde la hora prevista de envío:");
+        latency.printPercentiles(System.out, 1e6);
+    }
+
+    private void shutdown() {
+        for (LoadClient c : clients) {
+            try {
+                if (c.session != null && c.session.isOpen()) {
+                    c.session.close();
+                }
+            } catch (Exception ignored) {
+                // Se cierra igualmente al salir
+            }
+        }
+        container.shutdown();
+    }
+
+    // ---------------------------------------------------------------- una conexión
+
+    private final class LoadClient extends Endpoint {
+        final String name;
+        final int roomIndex;
+        final String room;
+        volatile Session session;
+        private boolean binary;
+        private final SendHandler onSent = result -> {
+            if (!result.isOK()) {
+                sendErrors.increment();
+            }
+        };
+
+        LoadClient(int id) {
+            this.name = "load-" + id;
+            this.roomIndex = id % ROOMS;
+            this.room = ROOMS > 1 ? "load-" + roomIndex : "general";
+        }
+
+        @Override
+        public void onOpen(Session session, EndpointConfig config) {
+            this.session = session;
+            this.binary = BinaryMessageCodec.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol());
+            session.addMessageHandler(String.class, (MessageHandler.Whole<String>) text -> onMessage(MessageCodec.decode(text)));
+            session.addMessageHandler(ByteBuffer.class, (MessageHandler.Whole<ByteBuffer>) data -> onMessage(BinaryMessageCodec.decode(data)));
+        }
+
+        @Override
+        public void onClose(Session session, CloseReason closeReason) {
+            if (!stopping) {
+                closedEarly.increment();
+                roomMembers.decrementAndGet(roomIndex);
+                if (closedEarly.sum() <= 5) {
+                    System.err.println("Conexión " + name + " cerrada por el servidor: " + closeReason);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Session session, Throwable thr) {
+            if (!stopping) {
+                sendErrors.increment();
+            }
+        }
+
+        void send(Message m) throws Exception {
+            if (binary) {
+                session.getBasicRemote().sendBinary(BinaryMessageCodec.encode(m));
+            } else {
+                session.getBasicRemote().sendText(MessageCodec.encode(m));
+            }
+        }
+
+        // Envío asíncrono: el hilo del ritmo nunca espera a la red
+        void sendChat(long dueNanos) {
+            Session s = session;
+            if (s == null || !s.isOpen()) {
+                if (dueNanos >= measureFrom) {
+                    sendErrors.increment();
+                }
+                return;
+            }
+            String head = MARK + dueNanos + ":";
+            Message m = new Message(name, head + padding.substring(0, SIZE - head.length()), "MENSAJE");
+            m.setSala(room);
+            if (dueNanos >= measureFrom) {
+                sent.increment();
+                expected.add(roomMembers.get(roomIndex));
+            }
+            try {
+                if (binary) {
+                    s.getAsyncRemote().sendBinary(BinaryMessageCodec.encode(m), onSent);
+                } else {
+                    s.getAsyncRemote().sendText(MessageCodec.encode(m), onSent);
+                }
+            } catch (RuntimeException e) {
+                sendErrors.increment();
+            }
+        }
+
+        private void onMessage(Message m) {
+            if (m == null) {
+                return;
+            }
+            String tipo = m.getTipo();
+            if ("BATCH".equalsIgnoreCase(tipo) && m.getLote() != null) {
+                for (Message item : m.getLote()) {
+                    onMessage(item);
+                }
+            } else if ("MENSAJE".equalsIgnoreCase(tipo)) {
+                long now = System.nanoTime();
+                String contenido = m.getContenido();
+                if (contenido == null || !contenido.startsWith(MARK)) {
+                    return;
+                }
+                int end = contenido.indexOf(':', MARK.length());
+                long due = Long.parseLong(contenido.substring(MARK.length(), end));
+                if (due >= measureFrom && !stopping) {
+                    received.increment();
+                    latency.record(now - due);
+                }
+                interval.get().record(now - due);
+            } else if ("ERROR".equalsIgnoreCase(tipo) && !stopping) {
+                serverErrors.increment();
+                if (serverErrors.sum() <= 5) {
+                    System.err.println("Error del servidor para " + name + ": " + m.getContenido());
+                }
+            }
+        }
+    }
+}
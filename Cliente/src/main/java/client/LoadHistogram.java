@@ -0,0 +1,122 @@
+package client;
+
+import protocol.LogLinearBuckets;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias del generador de carga, en nanosegundos y sin candados al registrar.
+ *
+ * <p>Cubetas log-lineales ({@link LogLinearBuckets}, 32 sub-cubetas por potencia de dos, error relativo como mucho del ~3 %);
+ * la salida imita la distribución de percentiles de HdrHistogram para poder compararla o
+ * dibujarla con las mismas herramientas.
+ */
+final class LoadHistogram {
+    private static final LogLinearBuckets B = new LogLinearBuckets(5);
+    private static final int BUCKETS = B.buckets();
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(B.index(v));
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    /** Copia de los contadores; las consultas trabajan sobre una copia para ser coherentes. */
+    long[] snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    static long total(long[] counts) {
+        long total = 0;
+        for (long c : counts) {
+            total += c;
+        }
+        return total;
+    }
+
+    /** Valor (límite superior de la cubeta) por debajo del cual queda la fracción {@code q}; 0 sin datos. */
+    static long quantile(long[] counts, double q, long max) {
+        long total = total(counts);
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(B.highestEquivalent(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Escribe la distribución con el formato de {@code outputPercentileDistribution} de HdrHistogram
+     * (5 marcas por mitad de distancia), escalando los valores por {@code unitNanos}.
+     */
+    void printPercentiles(PrintStream out, double unitNanos) {
+        long[] c = snapshot();
+        long total = total(c);
+        long maxValue = max();
+        out.println("       Value     Percentile TotalCount 1/(1-Percentile)");
+        out.println();
+        if (total > 0) {
+            double sum = 0;
+            double sumSquares = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (c[i] > 0) {
+                    double v = Math.min(middle(i), maxValue);
+                    sum += v * c[i];
+                    sumSquares += v * v * c[i];
+                }
+            }
+            double p = 0;
+            while (true) {
+                long rank = Math.max(1, (long) Math.ceil(p / 100.0 * total));
+                long seen = 0;
+                int i = 0;
+                while (seen + c[i] < rank) {
+                    seen += c[i++];
+                }
+                long value = Math.min(B.highestEquivalent(i), maxValue);
+                seen += c[i];
+                double fraction = (double) seen / total;
+                if (seen >= total) {
+                    out.printf("%12.3f %1.12f %10d%n", value / unitNanos, 1.0, seen);
+                    break;
+                }
+                out.printf("%12.3f %1.12f %10d %14.2f%n", value / unitNanos, fraction, seen, 1 / (1 - fraction));
+                // Como HdrHistogram: el paso se reduce a la mitad cada vez que se recorre la mitad de lo que queda
+                long halvings = (long) (Math.log(100.0 / (100.0 - fraction * 100.0)) / Math.log(2)) + 1;
+                p = Math.max(p, fraction * 100.0) + 100.0 / (5 * Math.pow(2, halvings));
+            }
+            double mean = sum / total;
+            double std = Math.sqrt(Math.max(0, sumSquares / total - mean * mean));
+            out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", mean / unitNanos, std / unitNanos);
+            out.printf("#[Max     = %12.3f, Total count    = %12d]%n", maxValue / unitNanos, total);
+        } else {
+            out.printf("#[Mean    = %12.3f, StdDeviation   = %12.3f]%n", 0.0, 0.0);
+            out.printf("#[Max     = %12.3f, Total count    = %12d]%n", 0.0, 0);
+        }
+        out.printf("#[Buckets = %12d, SubBuckets     = %12d]%n", BUCKETS / B.subBuckets(), B.subBuckets());
+    }
+
+    private static double middle(int index) {
+        long low = B.lowerBound(index);
+        return low + (B.highestEquivalent(index) - low) / 2.0;
+    }
+}
@@ -0,0 +1,258 @@
+package client;
+
+import protocol.BinaryMessageCodec;
+import protocol.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copia local de los mensajes de chat recibidos, para mostrar el historial al arrancar antes de
+ * conectar y pedir después al servidor solo lo posterior ({@code HISTORY} desde la última secuencia).
+ *
+ * <p>Un fichero de solo añadir por sala en {@code chat.cache.dir/<servidor>/<usuario>/<sala>.log}; cada
+ * registro es la longitud (int) seguida del mensaje en el formato binario del protocolo. Al arrancar
+ * cada fichero se mapea en memoria, se recorren solo las longitudes y se decodifican los últimos
+ * registros. Cuando una sala supera el doble de {@code chat.cache.maxMessages} se reescribe con los
+ * últimos {@code maxMessages} (copia de bytes, sin decodificar), así que el arranque no crece con el
+ * historial. Un registro a medias (cierre brusco) se descarta al abrir.
+ *
+ * <p>Las secuencias son las del servidor que las asignó, por eso hay una caché por servidor. Si ese
+ * servidor empieza otra numeración (p. ej. se reinicia sin registro persistente), lo guardado ya no
+ * sirve para pedir {@code HISTORY} ni para descartar repetidos y se vacía con {@link #reset()}.
+ *
+ * <p>Solo se usa desde el hilo {@code chat-inbound}, salvo {@link #close()}; los métodos están sincronizados.
+ */
+final class MessageCache implements AutoCloseable {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.cache.enabled", "true"));
+    static final int MAX_MESSAGES = Math.max(10, Integer.getInteger("chat.cache.maxMessages", 1000));
+
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final Map<String, Room> rooms = new HashMap<>();
+    private boolean closed;
+
+    private static final class Room {
+        final Path file;
+        FileChannel out;
+        int count;
+        long maxSeq;
+
+        Room(Path file) {
+            this.file = file;
+        }
+    }
+
+    private MessageCache(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Abre (o crea) la caché de ese servidor y usuario.
+     *
+     * @return la caché, o {@code null} si está desactivada o no se puede crear el directorio
+     */
+    static MessageCache open(String serverUri, String username) {
+        if (!ENABLED) {
+            return null;
+        }
+        String base = System.getProperty("chat.cache.dir", Paths.get(System.getProperty("user.home"), ".chat-cache").toString());
+        String servidor = serverUri.replaceFirst("^wss?://", "").replaceFirst("/.*$", "");
+        Path dir = Paths.get(base, safe(servidor), safe(username));
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        return new MessageCache(dir);
+    }
+
+    // Nombre de fichero sin separadores ni caracteres problemáticos
+    private static String safe(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c : '_');
+        }
+        return sb.length() == 0 ? "_" : sb.toString();
+    }
+
+    /**
+     * Lee los últimos mensajes guardados de cada sala (como mucho {@code maxMessages} por sala), en
+     * orden de secuencia. Deja preparada cada sala para seguir añadiendo.
+     */
+    synchronized List<Message> load() {
+        List<Message> mensajes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String sala = file.getFileName().toString();
+                sala = sala.substring(0, sala.length() - SUFFIX.length());
+                Room room = new Room(file);
+                try {
+                    loadRoom(room, mensajes);
+                } catch (IOException | RuntimeException e) {
+                    // sala ilegible: no se muestra ni se sigue escribiendo en ella en esta sesión
+                    room.maxSeq = Long.MAX_VALUE;
+                }
+                rooms.put(sala, room);
+            }
+        } catch (IOException e) {
+            // sin caché legible: se empieza de cero
+        }
+        mensajes.sort(Comparator.comparingLong(Message::getSeq));
+        return mensajes;
+    }
+
+    private void loadRoom(Room room, List<Message> mensajes) throws IOException {
+        try (FileChannel ch = FileChannel.open(room.file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            if (size == 0 || size > Integer.MAX_VALUE) {
+                return;
+            }
+            // Los límites se buscan sin mapear: truncar un fichero mapeado falla en Windows
+            List<Long> offsets = offsets(ch, size);
+            int count = offsets.size() - 1;
+            long valid = offsets.get(count);
+            if (valid < size) {
+                ch.truncate(valid);
+            }
+            room.count = count;
+            long desde = offsets.get(Math.max(0, count - MAX_MESSAGES));
+            if (valid == desde) {
+                return;
+            }
+            ByteBuffer map = ch.map(FileChannel.MapMode.READ_ONLY, desde, valid - desde);
+            for (int i = Math.max(0, count - MAX_MESSAGES); i < count; i++) {
+                int off = (int) (offsets.get(i) - desde);
+                int len = map.getInt(off);
+                try {
+                    Message m = BinaryMessageCodec.decode(map.slice(off + Integer.BYTES, len));
+                    if (m.getSeq() != null) {
+                        mensajes.add(m);
+                        room.maxSeq = Math.max(room.maxSeq, m.getSeq());
+                    }
+                } catch (IllegalArgumentException e) {
+                    // registro dañado: se salta
+                }
+            }
+        }
+    }
+
+    // Inicio de cada registro completo leyendo solo las longitudes; el último elemento es el fin del último registro
+    private static List<Long> offsets(FileChannel ch, long size) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        ByteBuffer longitud = ByteBuffer.allocate(Integer.BYTES);
+        long pos = 0;
+        while (pos + Integer.BYTES <= size) {
+            longitud.clear();
+            while (longitud.hasRemaining() && ch.read(longitud, pos + longitud.position()) > 0) {
+                // leer los 4 bytes
+            }
+            int len = longitud.getInt(0);
+            if (longitud.hasRemaining() || len <= 0 || pos + Integer.BYTES + len > size) {
+                break;
+            }
+            offsets.add(pos);
+            pos += Integer.BYTES + len;
+        }
+        offsets.add(pos);
+        return offsets;
+    }
+
+    /** Guarda un mensaje de sala con secuencia, si es posterior a lo ya guardado en esa sala. */
+    synchronized void append(Message m) {
+        if (closed || m.getSeq() == null || m.getSala() == null) {
+            return;
+        }
+        Room room = rooms.computeIfAbsent(safe(m.getSala()), s -> new Room(dir.resolve(s + SUFFIX)));
+        if (m.getSeq() <= room.maxSeq) {
+            return;
+        }
+        try {
+            if (room.out == null) {
+                room.out = FileChannel.open(room.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            ByteBuffer cuerpo = BinaryMessageCodec.encode(m);
+            ByteBuffer registro = ByteBuffer.allocate(Integer.BYTES + cuerpo.remaining());
+            registro.putInt(cuerpo.remaining()).put(cuerpo).flip();
+            while (registro.hasRemaining()) {
+                room.out.write(registro);
+            }
+            room.maxSeq = m.getSeq();
+            if (++room.count > 2 * MAX_MESSAGES) {
+                compact(room);
+            }
+        } catch (IOException e) {
+            closeQuietly(room);
+        }
+    }
+
+    // Reescribe la sala con sus últimos maxMessages registros copiando los bytes tal cual
+    private void compact(Room room) throws IOException {
+        closeQuietly(room);
+        Path tmp = room.file.resolveSibling(room.file.getFileName() + ".tmp");
+        try (FileChannel in = FileChannel.open(room.file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Long> offsets = offsets(in, in.size());
+            int count = offsets.size() - 1;
+            long pos = offsets.get(count);
+            long desde = offsets.get(Math.max(0, count - MAX_MESSAGES));
+            for (long p = desde; p < pos; ) {
+                p += in.transferTo(p, pos - p, out);
+            }
+            room.count = Math.min(count, MAX_MESSAGES);
+        }
+        Files.move(tmp, room.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Vacía la caché: el servidor numera de nuevo y las secuencias guardadas ya no corresponden a las
+     * suyas. Se borran los ficheros y se sigue guardando desde cero.
+     */
+    synchronized void reset() {
+        for (Room room : rooms.values()) {
+            closeQuietly(room);
+            room.count = 0;
+            room.maxSeq = 0;
+            try {
+                Files.deleteIfExists(room.file);
+            } catch (IOException e) {
+                // no se puede borrar (p. ej. aún mapeado en Windows): no se sigue escribiendo en ella en esta sesión
+                room.maxSeq = Long.MAX_VALUE;
+            }
+        }
+    }
+
+    private static void closeQuietly(Room room) {
+        if (room.out != null) {
+            try {
+                room.out.close();
+            } catch (IOException e) {
+                // nada más que hacer
+            }
+            room.out = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        for (Room room : rooms.values()) {
+            closeQuietly(room);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Descubrimiento de servidores en la LAN. Envía la sonda {@code DISCOVER_CHAT_SERVER} al grupo
+ * multicast y por broadcast (para servidores antiguos), recoge durante {@code chat.discovery.windowMs}
+ * las respuestas de todos los nodos y los ordena de menos a más cargado: primero por sesiones abiertas
+ * y luego por carga del sistema. Los nodos que no informan de su carga van al final.
+ *
+ * <p>El resultado se guarda {@code chat.discovery.cacheMs}: al reconectar se vuelve al mismo nodo (que
+ * es donde está aparcada la sesión reanudable) sin repetir la sonda, y si ese nodo no responde se pasa
+ * al siguiente de la lista. Solo se sondea de nuevo cuando la lista caduca o se agota.
+ */
+final class ServerDiscovery {
+    private static final int PORT = Integer.getInteger("chat.discovery.port", 9090);
+    private static final String GROUP = System.getProperty("chat.discovery.group", "239.255.90.90");
+    private static final long WINDOW_MS = Math.max(50, Long.getLong("chat.discovery.windowMs", 300));
+    private static final long CACHE_MS = Long.getLong("chat.discovery.cacheMs", 60000);
+    private static final String PREFIX = "CHAT_SERVER:";
+
+    /** Un nodo que respondió a la sonda. */
+    static final class Node {
+        final String id;
+        final String uri;
+        final int sessions; // -1 si no lo informa
+        final int load;     // milésimas por procesador, -1 si no lo informa
+
+        Node(String id, String uri, int sessions, int load) {
+            this.id = id;
+            this.uri = uri;
+            this.sessions = sessions;
+            this.load = load;
+        }
+    }
+
+    private static final Comparator<Node> MENOS_CARGADO = Comparator
+            .comparingLong((Node n) -> n.sessions < 0 ? Long.MAX_VALUE : n.sessions)
+            .thenComparingLong(n -> n.load < 0 ? Long.MAX_VALUE : n.load)
+            .thenComparing(n -> n.id);
+
+    private final String fallbackUri;
+    private List<Node> nodes = new ArrayList<>();
+    private long probedAt;
+    private Node current;
+
+    /** @param fallbackUri URI a la que conectar si ningún servidor responde */
+    ServerDiscovery(String fallbackUri) {
+        this.fallbackUri = fallbackUri;
+    }
+
+    /**
+     * URI a la que conectar: el nodo actual mientras la lista no caduque, o el menos cargado de una
+     * sonda nueva. Puede bloquear durante la ventana de la sonda.
+     */
+    synchronized String pick() {
+        if (nodes.isEmpty() || System.nanoTime() - probedAt > TimeUnit.MILLISECONDS.toNanos(CACHE_MS)) {
+            nodes = probe();
+            probedAt = System.nanoTime();
+            current = null;
+        }
+        if (current == null || !nodes.contains(current)) {
+            current = nodes.isEmpty() ? null : nodes.get(0);
+        }
+        return current == null ? fallbackUri : current.uri;
+    }
+
+    /** El nodo actual no aceptó la conexión: el siguiente {@link #pick()} prueba con otro. */
+    synchronized void failed(String uri) {
+        if (current != null && current.uri.equals(uri)) {
+            nodes.remove(current);
+            current = null;
+        }
+    }
+
+    /** Nodo al que lleva {@link #pick()}, o {@code null} si se usa la URI de respaldo. */
+    synchronized Node current() {
+        return current;
+    }
+
+    // Una sonda por multicast y otra por broadcast; un mismo nodo puede responder a las dos
+    private static List<Node> probe() {
+        Map<String, Node> found = new LinkedHashMap<>();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+            byte[] sonda = "DISCOVER_CHAT_SERVER".getBytes(StandardCharsets.US_ASCII);
+            for (String destino : new String[] {GROUP, "255.255.255.255"}) {
+                try {
+                    socket.send(new DatagramPacket(sonda, sonda.length, InetAddress.getByName(destino), PORT));
+                } catch (IOException e) {
+                    // Sin ruta multicast o sin broadcast: queda la otra vía
+                }
+            }
+            long fin = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WINDOW_MS);
+            byte[] buf = new byte[512];
+            long restante;
+            while ((restante = TimeUnit.NANOSECONDS.toMillis(fin - System.nanoTime())) > 0) {
+                socket.setSoTimeout((int) restante);
+                DatagramPacket pkt = new DatagramPacket(buf, buf.length);
+                try {
+                    socket.receive(pkt);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                Node node = parse(new String(pkt.getData(), 0, pkt.getLength(), StandardCharsets.UTF_8).trim());
+                if (node != null) {
+                    found.putIfAbsent(node.id, node);
+                }
+            }
+        } catch (IOException e) {
+            // Silenciar: se usará la URI de respaldo
+        }
+        List<Node> ordenados = new ArrayList<>(found.values());
+        ordenados.sort(MENOS_CARGADO);
+        return ordenados;
+    }
+
+    /**
+     * {@code CHAT_SERVER:host:puerto:nodo:sesiones:carga}, o solo {@code CHAT_SERVER:host:puerto} en
+     * servidores antiguos. Los campos nuevos se leen desde el final para admitir hosts con ':'.
+     */
+    static Node parse(String message) {
+        if (!message.startsWith(PREFIX)) {
+            return null;
+        }
+        String[] p = message.substring(PREFIX.length()).split(":");
+        try {
+            if (p.length >= 5) {
+                int n = p.length;
+                String host = String.join(":", Arrays.copyOf(p, n - 4));
+                String uri = uri(host, Integer.parseInt(p[n - 4]));
+                return new Node(p[n - 3], uri, Integer.parseInt(p[n - 2]), Integer.parseInt(p[n - 1]));
+            }
+            if (p.length >= 2) {
+                String uri = uri(p[0], Integer.parseInt(p[1]));
+                return new Node(p[0] + ":" + p[1], uri, -1, -1);
+            }
+        } catch (NumberFormatException e) {
+            // respuesta mal formada: se ignora
+        }
+        return null;
+    }
+
+    private static String uri(String host, int port) {
+        return String.format("ws://%s:%d/websocket/chat", host.indexOf(':') >= 0 ? "[" + host + "]" : host, port);
+    }
+}
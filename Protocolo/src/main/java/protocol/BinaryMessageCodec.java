@@ -0,0 +1,262 @@
+package protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Formato binario compacto de {@link Message}, negociado con el subprotocolo {@link #SUBPROTOCOL}.
+ *
+ * <pre>
+ * mensaje := tipo:u8 [cadena si tipo = 255] campos:varint valores...
+ * </pre>
+ *
+ * {@code tipo} es una etiqueta de un byte en lugar de la cadena ({@link #TAGS}); {@code campos} es una
+ * máscara de bits con los campos presentes, que siguen en este orden: usuario, contenido, hora,
+ * sala, version, usuarios, seq, lote, destinatario. Cadenas y listas van precedidas de su longitud en varint;
+ * los números (hora en epoch millis incluida) son varint sin signo.
+ */
+public final class BinaryMessageCodec {
+    public static final String SUBPROTOCOL = "chat.bin.v1";
+    public static final String JSON_SUBPROTOCOL = "chat.json.v1";
+
+    /** Tipos conocidos; el índice es la etiqueta. 0 = sin tipo, 255 = tipo escrito como cadena. */
+    private static final String[] TAGS = {
+        null, "MENSAJE", "CONEXION", "DESCONEXION", "INFO", "ERROR", "SET_NAME", "JOIN", "LEAVE",
+        "PRESENCE", "PRESENCE_SNAPSHOT", "PRESENCE_SYNC", "USER_JOINED", "USER_LEFT", "USER_RENAMED",
+        "HISTORY", "BATCH", "RESUME", "DIRECT", "SEARCH"
+    };
+    private static final int BATCH_TAG = 16;
+    private static final int CUSTOM_TAG = 255;
+
+    private static final int F_USUARIO = 1;
+    private static final int F_CONTENIDO = 1 << 1;
+    private static final int F_HORA = 1 << 2;
+    private static final int F_SALA = 1 << 3;
+    private static final int F_VERSION = 1 << 4;
+    private static final int F_USUARIOS = 1 << 5;
+    private static final int F_SEQ = 1 << 6;
+    private static final int F_LOTE = 1 << 7;
+    private static final int F_DESTINATARIO = 1 << 8;
+
+    private static final int MAX_RETAINED = 64 * 1024;
+    private static final ThreadLocal<Out> BUFFER = ThreadLocal.withInitial(Out::new);
+
+    private BinaryMessageCodec() {
+    }
+
+    // ---------------------------------------------------------------- escritura
+
+    /** Codifica el mensaje en un buffer nuevo listo para enviar (posición 0). */
+    public static ByteBuffer encode(Message m) {
+        Out out = BUFFER.get();
+        out.len = 0;
+        write(m, out);
+        ByteBuffer result = ByteBuffer.wrap(Arrays.copyOf(out.buf, out.len));
+        if (out.buf.length > MAX_RETAINED) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Agrupa mensajes ya codificados en un mensaje BATCH sin volver a serializarlos: el lote binario
+     * es la concatenación de sus elementos, así que basta con copiarlos detrás de la cabecera.
+     */
+    public static ByteBuffer encodeBatch(List<ByteBuffer> items) {
+        Out out = BUFFER.get();
+        out.len = 0;
+        out.put(BATCH_TAG);
+        out.varint(F_LOTE);
+        out.varint(items.size());
+        for (ByteBuffer item : items) {
+            ByteBuffer b = item.duplicate();
+            int n = b.remaining();
+            out.ensure(n);
+            b.get(out.buf, out.len, n);
+            out.len += n;
+        }
+        ByteBuffer result = ByteBuffer.wrap(Arrays.copyOf(out.buf, out.len));
+        if (out.buf.length > MAX_RETAINED) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    private static void write(Message m, Out out) {
+        int tag = tagOf(m.getTipo());
+        out.put(tag);
+        if (tag == CUSTOM_TAG) {
+            out.string(m.getTipo());
+        }
+        int fields = (m.getUsuario() != null ? F_USUARIO : 0)
+                | (m.getContenido() != null ? F_CONTENIDO : 0)
+                | (m.getHora() != 0 ? F_HORA : 0)
+                | (m.getSala() != null ? F_SALA : 0)
+                | (m.getVersion() != null ? F_VERSION : 0)
+                | (m.getUsuarios() != null ? F_USUARIOS : 0)
+                | (m.getSeq() != null ? F_SEQ : 0)
+                | (m.getLote() != null ? F_LOTE : 0)
+                | (m.getDestinatario() != null ? F_DESTINATARIO : 0);
+        out.varint(fields);
+        if ((fields & F_USUARIO) != 0) out.string(m.getUsuario());
+        if ((fields & F_CONTENIDO) != 0) out.string(m.getContenido());
+        if ((fields & F_HORA) != 0) out.varint(m.getHora());
+        if ((fields & F_SALA) != 0) out.string(m.getSala());
+        if ((fields & F_VERSION) != 0) out.varint(m.getVersion());
+        if ((fields & F_USUARIOS) != 0) {
+            out.varint(m.getUsuarios().size());
+            for (String u : m.getUsuarios()) {
+                out.string(u != null ? u : "");
+            }
+        }
+        if ((fields & F_SEQ) != 0) out.varint(m.getSeq());
+        if ((fields & F_LOTE) != 0) {
+            out.varint(m.getLote().size());
+            for (Message item : m.getLote()) {
+                write(item, out);
+            }
+        }
+        if ((fields & F_DESTINATARIO) != 0) out.string(m.getDestinatario());
+    }
+
+    private static int tagOf(String tipo) {
+        if (tipo == null) {
+            return 0;
+        }
+        for (int i = 1; i < TAGS.length; i++) {
+            if (TAGS[i].equals(tipo)) {
+                return i;
+            }
+        }
+        return CUSTOM_TAG;
+    }
+
+    // ---------------------------------------------------------------- lectura
+
+    /**
+     * Decodifica un mensaje desde la posición actual del buffer (que avanza).
+     *
+     * @throws IllegalArgumentException si los datos están truncados o no son válidos
+     */
+    public static Message decode(ByteBuffer in) {
+        try {
+            return read(in, 0);
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IllegalArgumentException("Mensaje binario truncado", e);
+        }
+    }
+
+    // lotes: niveles de lote por encima de este mensaje; como en el JSON, se aceptan hasta
+    // MessageCodec.MAX_LOTES (un BATCH de frames HISTORY) para no recursar sin límite
+    private static Message read(ByteBuffer in, int lotes) {
+        Message m = new Message();
+        int tag = in.get() & 0xFF;
+        if (tag == CUSTOM_TAG) {
+            m.setTipo(string(in));
+        } else if (tag < TAGS.length) {
+            m.setTipo(TAGS[tag]);
+        } else {
+            throw new IllegalArgumentException("Etiqueta de tipo desconocida: " + tag);
+        }
+        int fields = (int) varint(in);
+        if ((fields & F_USUARIO) != 0) m.setUsuario(string(in));
+        if ((fields & F_CONTENIDO) != 0) m.setContenido(string(in));
+        if ((fields & F_HORA) != 0) m.setHora(varint(in));
+        if ((fields & F_SALA) != 0) m.setSala(string(in));
+        if ((fields & F_VERSION) != 0) m.setVersion(varint(in));
+        if ((fields & F_USUARIOS) != 0) {
+            int n = count(in);
+            List<String> usuarios = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                usuarios.add(string(in));
+            }
+            m.setUsuarios(usuarios);
+        }
+        if ((fields & F_SEQ) != 0) m.setSeq(varint(in));
+        if ((fields & F_LOTE) != 0) {
+            if (lotes >= MessageCodec.MAX_LOTES) {
+                throw new IllegalArgumentException("Lotes anidados a más de " + MessageCodec.MAX_LOTES + " niveles");
+            }
+            int n = count(in);
+            List<Message> lote = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                lote.add(read(in, lotes + 1));
+            }
+            m.setLote(lote);
+        }
+        if ((fields & F_DESTINATARIO) != 0) m.setDestinatario(string(in));
+        return m;
+    }
+
+    private static long varint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint demasiado largo");
+    }
+
+    private static int count(ByteBuffer in) {
+        long n = varint(in);
+        // Cada elemento ocupa al menos un byte: una longitud mayor que lo que queda es basura
+        if (n < 0 || n > in.remaining()) {
+            throw new IllegalArgumentException("Longitud inválida: " + n);
+        }
+        return (int) n;
+    }
+
+    private static String string(ByteBuffer in) {
+        int len = count(in);
+        String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+            in.position(in.position() + len);
+        } else {
+            byte[] b = new byte[len];
+            in.get(b);
+            s = new String(b, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    // Buffer de escritura reutilizable por hilo
+    private static final class Out {
+        byte[] buf = new byte[256];
+        int len;
+
+        void put(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void varint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        void string(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            varint(b.length);
+            ensure(b.length);
+            System.arraycopy(b, 0, buf, len, b.length);
+            len += b.length;
+        }
+
+        void ensure(int extra) {
+            if (len + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package protocol;
+
+/**
+ * Cubetas log-lineales para histogramas de valores no negativos: cada potencia de dos se divide en
+ * {@code 2^subBits} sub-cubetas, así que el error relativo de una cubeta es como mucho {@code 1 / 2^subBits}.
+ * Los valores menores que el número de sub-cubetas tienen cubeta propia. Con {@link #buckets()}
+ * cubetas se cubre todo el rango de {@code long}.
+ *
+ * <p>Solo calcula índices y límites; los contadores los lleva cada histograma (el del servidor y el
+ * del generador de carga), que eligen la precisión.
+ */
+public final class LogLinearBuckets {
+    private final int subBits;
+    private final int sub;
+    private final int buckets;
+
+    /** @param subBits bits de sub-cubeta por potencia de dos (entre 1 y 16) */
+    public LogLinearBuckets(int subBits) {
+        if (subBits < 1 || subBits > 16) {
+            throw new IllegalArgumentException("subBits fuera de rango: " + subBits);
+        }
+        this.subBits = subBits;
+        this.sub = 1 << subBits;
+        this.buckets = (62 - subBits + 1) * sub + sub; // valores hasta Long.MAX_VALUE
+    }
+
+    /** Número total de cubetas. */
+    public int buckets() {
+        return buckets;
+    }
+
+    /** Sub-cubetas por potencia de dos. */
+    public int subBuckets() {
+        return sub;
+    }
+
+    /** Cubeta de un valor no negativo. */
+    public int index(long v) {
+        if (v < sub) {
+            return (int) v;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        int s = (int) (v >>> (msb - subBits)) & (sub - 1);
+        return (msb - subBits + 1) * sub + s;
+    }
+
+    /** Menor valor que cae en la cubeta. */
+    public long lowerBound(int index) {
+        if (index < sub) {
+            return index;
+        }
+        int msb = index / sub + subBits - 1;
+        int s = index % sub;
+        return (long) (sub + s) << (msb - subBits);
+    }
+
+    /** Mayor valor que cae en la cubeta. */
+    public long highestEquivalent(int index) {
+        return index + 1 < buckets ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,48 @@
+package protocol;
+
+import java.util.List;
+
+public class Message {
+    private String usuario;
+    private String contenido;
+    private long hora; // epoch millis; 0 = desconocida
+    private String tipo; // "MENSAJE", "CONEXION", "DESCONEXION", "JOIN", "LEAVE"
+    private String sala; // sala destino; null = mensaje global del sistema
+    private Long version; // versión de presencia en PRESENCE_SNAPSHOT y USER_JOINED/LEFT/RENAMED
+    private List<String> usuarios; // solo en PRESENCE_SNAPSHOT
+    private Long seq; // número de secuencia asignado por el servidor al difundir
+    private List<Message> lote; // mensajes agrupados (respuesta a HISTORY y frames BATCH)
+    private String destinatario; // usuario al que va un mensaje DIRECT
+
+    public Message() {
+    }
+
+    public Message(String usuario, String contenido, String tipo) {
+        this.usuario = usuario;
+        this.contenido = contenido;
+        this.hora = System.currentTimeMillis();
+        this.tipo = tipo;
+    }
+
+    // Getters y setters
+    public String getUsuario() { return usuario; }
+    public void setUsuario(String usuario) { this.usuario = usuario; }
+    public String getContenido() { return contenido; }
+    public void setContenido(String contenido) { this.contenido = contenido; }
+    public long getHora() { return hora; }
+    public void setHora(long hora) { this.hora = hora; }
+    public String getTipo() { return tipo; }
+    public void setTipo(String tipo) { this.tipo = tipo; }
+    public String getSala() { return sala; }
+    public void setSala(String sala) { this.sala = sala; }
+    public Long getVersion() { return version; }
+    public void setVersion(Long version) { this.version = version; }
+    public List<String> getUsuarios() { return usuarios; }
+    public void setUsuarios(List<String> usuarios) { this.usuarios = usuarios; }
+    public Long getSeq() { return seq; }
+    public void setSeq(Long seq) { this.seq = seq; }
+    public List<Message> getLote() { return lote; }
+    public void setLote(List<Message> lote) { this.lote = lote; }
+    public String getDestinatario() { return destinatario; }
+    public void setDestinatario(String destinatario) { this.destinatario = destinatario; }
+}
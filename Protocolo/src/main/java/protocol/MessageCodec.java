@@ -0,0 +1,508 @@
+package protocol;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Códec JSON de {@link Message} escrito a mano, sin reflexión.
+ *
+ * <p>La escritura reutiliza un {@link StringBuilder} por hilo y la lectura es un escáner de un solo
+ * paso que reconoce los nombres de campo comparando regiones del texto de entrada, sin crear
+ * cadenas para ellos; solo se reservan los valores que acaban en el mensaje. {@code hora} viaja
+ * como epoch millis; por compatibilidad también se acepta la fecha ISO local que enviaban las
+ * versiones basadas en Gson.
+ */
+public final class MessageCodec {
+    private static final int MAX_RETAINED = 64 * 1024;
+    /** Niveles de {@code lote} que acepta la lectura: un BATCH de frames HISTORY. */
+    static final int MAX_LOTES = 2;
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private MessageCodec() {
+    }
+
+    // ---------------------------------------------------------------- escritura
+
+    public static String encode(Message m) {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        write(m, sb);
+        String json = sb.toString();
+        if (sb.capacity() > MAX_RETAINED) {
+            BUFFER.remove(); // no retener buffers enormes tras un HISTORY grande
+        }
+        return json;
+    }
+
+    /**
+     * Agrupa mensajes ya codificados en un único {@code {"tipo":"BATCH","lote":[...]}} sin volver a
+     * serializarlos; equivale a codificar un mensaje BATCH cuyo lote son esos mensajes.
+     */
+    public static String encodeBatch(List<String> items) {
+        StringBuilder sb = BUFFER.get();
+        sb.setLength(0);
+        sb.append("{\"tipo\":\"BATCH\",\"lote\":[");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(items.get(i));
+        }
+        sb.append("]}");
+        String json = sb.toString();
+        if (sb.capacity() > MAX_RETAINED) {
+            BUFFER.remove();
+        }
+        return json;
+    }
+
+    /** Escribe el mensaje en {@code sb}; los campos nulos (y hora 0) se omiten. */
+    public static void write(Message m, StringBuilder sb) {
+        sb.append('{');
+        boolean first = true;
+        first = field(sb, "usuario", m.getUsuario(), first);
+        first = field(sb, "contenido", m.getContenido(), first);
+        if (m.getHora() != 0) {
+            first = name(sb, "hora", first);
+            sb.append(m.getHora());
+        }
+        first = field(sb, "tipo", m.getTipo(), first);
+        first = field(sb, "sala", m.getSala(), first);
+        first = field(sb, "destinatario", m.getDestinatario(), first);
+        if (m.getVersion() != null) {
+            first = name(sb, "version", first);
+            sb.append(m.getVersion().longValue());
+        }
+        if (m.getUsuarios() != null) {
+            first = name(sb, "usuarios", first);
+            sb.append('[');
+            List<String> usuarios = m.getUsuarios();
+            for (int i = 0; i < usuarios.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                string(sb, usuarios.get(i));
+            }
+            sb.append(']');
+        }
+        if (m.getSeq() != null) {
+            first = name(sb, "seq", first);
+            sb.append(m.getSeq().longValue());
+        }
+        if (m.getLote() != null) {
+            name(sb, "lote", first);
+            sb.append('[');
+            List<Message> lote = m.getLote();
+            for (int i = 0; i < lote.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                write(lote.get(i), sb);
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+    }
+
+    private static boolean field(StringBuilder sb, String name, String value, boolean first) {
+        if (value == null) {
+            return first;
+        }
+        name(sb, name, first);
+        string(sb, value);
+        return false;
+    }
+
+    private static boolean name(StringBuilder sb, String name, boolean first) {
+        if (!first) {
+            sb.append(',');
+        }
+        sb.append('"').append(name).append("\":");
+        return false;
+    }
+
+    private static void string(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        int run = 0; // inicio del tramo sin escapes pendiente de copiar
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            sb.append(s, run, i);
+            run = i + 1;
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+            }
+        }
+        sb.append(s, run, s.length()).append('"');
+    }
+
+    // ---------------------------------------------------------------- lectura
+
+    /**
+     * Decodifica un objeto JSON a {@link Message}. Los campos desconocidos se ignoran.
+     *
+     * @throws IllegalArgumentException si el texto no es un objeto JSON válido
+     */
+    public static Message decode(String json) {
+        Parser p = new Parser(json);
+        p.skipWs();
+        Message m = p.readMessage();
+        p.skipWs();
+        if (p.pos != json.length()) {
+            throw p.error("contenido extra tras el objeto");
+        }
+        return m;
+    }
+
+    private static final class Parser {
+        private final String s;
+        private int pos;
+        // Lotes abiertos. Lo más anidado que envía el servidor es un BATCH con frames HISTORY dentro;
+        // un tercer nivel se rechaza en vez de recursar sin límite
+        private int lotes;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        Message readMessage() {
+            expect('{');
+            Message m = new Message();
+            skipWs();
+            if (peek() == '}') {
+                pos++;
+                return m;
+            }
+            while (true) {
+                skipWs();
+                expect('"');
+                int start = pos;
+                int end = s.indexOf('"', start);
+                if (end < 0) {
+                    throw error("nombre de campo sin cerrar");
+                }
+                boolean known = !hasEscape(start, end);
+                if (known) {
+                    pos = end + 1;
+                } else {
+                    // Ningún campo conocido lleva escapes: se lee el nombre completo y se ignora el valor
+                    pos = start - 1;
+                    readString();
+                }
+                skipWs();
+                expect(':');
+                skipWs();
+                if (known) {
+                    readField(m, start, end - start);
+                } else {
+                    skipValue();
+                }
+                skipWs();
+                char c = next();
+                if (c == '}') {
+                    return m;
+                }
+                if (c != ',') {
+                    throw error("se esperaba ',' o '}'");
+                }
+            }
+        }
+
+        // Despacho por longitud y comparación de región: ningún nombre de campo se convierte en String
+        private void readField(Message m, int start, int len) {
+            switch (len) {
+                case 3:
+                    if (is(start, len, "seq")) { m.setSeq(readLong()); return; }
+                    break;
+                case 4:
+                    if (is(start, len, "hora")) { m.setHora(readHora()); return; }
+                    if (is(start, len, "tipo")) { m.setTipo(readString()); return; }
+                    if (is(start, len, "sala")) { m.setSala(readString()); return; }
+                    if (is(start, len, "lote")) { m.setLote(readMessages()); return; }
+                    break;
+                case 7:
+                    if (is(start, len, "usuario")) { m.setUsuario(readString()); return; }
+                    if (is(start, len, "version")) { m.setVersion(readLong()); return; }
+                    break;
+                case 8:
+                    if (is(start, len, "usuarios")) { m.setUsuarios(readStrings()); return; }
+                    break;
+                case 9:
+                    if (is(start, len, "contenido")) { m.setContenido(readString()); return; }
+                    break;
+                case 12:
+                    if (is(start, len, "destinatario")) { m.setDestinatario(readString()); return; }
+                    break;
+                default:
+                    break;
+            }
+            skipValue();
+        }
+
+        private boolean hasEscape(int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (s.charAt(i) == '\\') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean is(int start, int len, String name) {
+            return s.regionMatches(start, name, 0, len);
+        }
+
+        String readString() {
+            if (peek() == 'n') {
+                literal("null");
+                return null;
+            }
+            expect('"');
+            int start = pos;
+            // Camino rápido: sin escapes, la cadena es una subcadena directa
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c == '"') {
+                    return s.substring(start, pos++);
+                }
+                if (c == '\\') {
+                    break;
+                }
+                pos++;
+            }
+            StringBuilder sb = new StringBuilder(pos - start + 16).append(s, start, pos);
+            while (pos < s.length()) {
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                char e = next();
+                switch (e) {
+                    case '"': sb.append('"'); break;
+                    case '\\': sb.append('\\'); break;
+                    case '/': sb.append('/'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > s.length()) {
+                            throw error("escape \\u incompleto");
+                        }
+                        sb.append((char) Integer.parseInt(s, pos, pos + 4, 16));
+                        pos += 4;
+                        break;
+                    default:
+                        throw error("escape inválido");
+                }
+            }
+            throw error("cadena sin cerrar");
+        }
+
+        Long readLong() {
+            char c = peek();
+            if (c == 'n') {
+                literal("null");
+                return null;
+            }
+            int start = pos;
+            long value = 0;
+            boolean negative = false;
+            if (c == '-') {
+                negative = true;
+                pos++;
+            }
+            int digits = pos;
+            while (pos < s.length() && s.charAt(pos) >= '0' && s.charAt(pos) <= '9') {
+                value = value * 10 + (s.charAt(pos++) - '0');
+            }
+            if (pos == digits) {
+                throw error("se esperaba un número");
+            }
+            // Números con decimales o exponente (p. ej. "1.0"): camino lento
+            if (pos < s.length() && (s.charAt(pos) == '.' || s.charAt(pos) == 'e' || s.charAt(pos) == 'E')) {
+                while (pos < s.length() && "+-.eE0123456789".indexOf(s.charAt(pos)) >= 0) {
+                    pos++;
+                }
+                return (long) Double.parseDouble(s.substring(start, pos));
+            }
+            return negative ? -value : value;
+        }
+
+        private long readHora() {
+            if (peek() == '"') {
+                // Formato antiguo: LocalDateTime ISO sin zona
+                String iso = readString();
+                try {
+                    return LocalDateTime.parse(iso).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    throw error("hora inválida: " + iso);
+                }
+            }
+            Long v = readLong();
+            return v != null ? v : 0;
+        }
+
+        private List<String> readStrings() {
+            if (peek() == 'n') {
+                literal("null");
+                return null;
+            }
+            expect('[');
+            List<String> list = new ArrayList<>();
+            skipWs();
+            if (peek() == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                skipWs();
+                list.add(readString());
+                skipWs();
+                char c = next();
+                if (c == ']') {
+                    return list;
+                }
+                if (c != ',') {
+                    throw error("se esperaba ',' o ']'");
+                }
+            }
+        }
+
+        private List<Message> readMessages() {
+            if (peek() == 'n') {
+                literal("null");
+                return null;
+            }
+            if (lotes >= MAX_LOTES) {
+                throw error("lotes anidados a más de " + MAX_LOTES + " niveles");
+            }
+            expect('[');
+            List<Message> list = new ArrayList<>();
+            skipWs();
+            if (peek() == ']') {
+                pos++;
+                return list;
+            }
+            lotes++;
+            while (true) {
+                skipWs();
+                list.add(readMessage());
+                skipWs();
+                char c = next();
+                if (c == ']') {
+                    lotes--;
+                    return list;
+                }
+                if (c != ',') {
+                    throw error("se esperaba ',' o ']'");
+                }
+            }
+        }
+
+        // Salta un valor de un campo desconocido sin construirlo
+        private void skipValue() {
+            char c = peek();
+            switch (c) {
+                case '"':
+                    pos++;
+                    while (pos < s.length()) {
+                        char ch = s.charAt(pos++);
+                        if (ch == '\\') {
+                            pos++;
+                        } else if (ch == '"') {
+                            return;
+                        }
+                    }
+                    throw error("cadena sin cerrar");
+                case '{':
+                case '[': {
+                    int depth = 0;
+                    while (pos < s.length()) {
+                        char ch = s.charAt(pos);
+                        if (ch == '"') {
+                            skipValue();
+                            continue;
+                        }
+                        pos++;
+                        if (ch == '{' || ch == '[') {
+                            depth++;
+                        } else if ((ch == '}' || ch == ']') && --depth == 0) {
+                            return;
+                        }
+                    }
+                    throw error("estructura sin cerrar");
+                }
+                case 't': literal("true"); return;
+                case 'f': literal("false"); return;
+                case 'n': literal("null"); return;
+                default:
+                    while (pos < s.length() && "+-.eE0123456789".indexOf(s.charAt(pos)) >= 0) {
+                        pos++;
+                    }
+            }
+        }
+
+        private void literal(String lit) {
+            if (!s.startsWith(lit, pos)) {
+                throw error("se esperaba " + lit);
+            }
+            pos += lit.length();
+        }
+
+        void skipWs() {
+            while (pos < s.length()) {
+                char c = s.charAt(pos);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return;
+                }
+                pos++;
+            }
+        }
+
+        private char peek() {
+            if (pos >= s.length()) {
+                throw error("fin inesperado");
+            }
+            return s.charAt(pos);
+        }
+
+        private char next() {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char c) {
+            if (next() != c) {
+                pos--;
+                throw error("se esperaba '" + c + "'");
+            }
+        }
+
+        IllegalArgumentException error(String msg) {
+            return new IllegalArgumentException("JSON inválido en posición " + pos + ": " + msg);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package protocol;
+
+import jakarta.websocket.DecodeException;
+import jakarta.websocket.Decoder;
+import jakarta.websocket.EndpointConfig;
+
+/** {@link Decoder} de texto para {@code @ServerEndpoint}/{@code @ClientEndpoint} basado en {@link MessageCodec}. */
+public class MessageTextDecoder implements Decoder.Text<Message> {
+
+    @Override
+    public Message decode(String texto) throws DecodeException {
+        try {
+            return MessageCodec.decode(texto);
+        } catch (RuntimeException e) {
+            throw new DecodeException(texto, e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean willDecode(String texto) {
+        if (texto == null) {
+            return false;
+        }
+        for (int i = 0; i < texto.length(); i++) {
+            char c = texto.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void init(EndpointConfig config) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
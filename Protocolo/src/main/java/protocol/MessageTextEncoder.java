@@ -0,0 +1,22 @@
+package protocol;
+
+import jakarta.websocket.EncodeException;
+import jakarta.websocket.Encoder;
+import jakarta.websocket.EndpointConfig;
+
+/** {@link Encoder} de texto para {@code @ServerEndpoint}/{@code @ClientEndpoint} basado en {@link MessageCodec}. */
+public class MessageTextEncoder implements Encoder.Text<Message> {
+
+    @Override
+    public String encode(Message mensaje) throws EncodeException {
+        return MessageCodec.encode(mensaje);
+    }
+
+    @Override
+    public void init(EndpointConfig config) {
+    }
+
+    @Override
+    public void destroy() {
+    }
+}
@@ -0,0 +1,318 @@
+package protocol;
+
+import jakarta.websocket.Extension;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.glassfish.tyrus.core.extension.ExtendedExtension;
+import org.glassfish.tyrus.core.frame.Frame;
+
+/**
+ * Extensión {@code permessage-deflate} (RFC 7692) para Tyrus, usada por servidor y cliente.
+ *
+ * <p>Solo se comprimen mensajes completos (un frame con FIN) de al menos {@code chat.deflate.minBytes}
+ * bytes; el resto sale sin RSV1, lo que la RFC permite mensaje a mensaje. Con
+ * {@code chat.deflate.contextTakeover=false} cada mensaje se comprime con el diccionario vacío:
+ * peor ratio pero sin mantener la ventana de 32 KiB entre mensajes. El par también puede pedirlo
+ * en la negociación ({@code server_no_context_takeover} / {@code client_no_context_takeover}).
+ *
+ * <p>Los contadores son globales del proceso: bytes antes y después de comprimir y tiempo gastado
+ * comprimiendo y descomprimiendo, para medir ancho de banda frente a CPU con carga real.
+ */
+public final class PerMessageDeflate implements ExtendedExtension {
+    public static final String NAME = "permessage-deflate";
+
+    static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.deflate.enabled", "true"));
+    static final int MIN_BYTES = Math.max(0, Integer.getInteger("chat.deflate.minBytes", 256));
+    static final boolean CONTEXT_TAKEOVER = Boolean.parseBoolean(System.getProperty("chat.deflate.contextTakeover", "true"));
+    static final int LEVEL = Integer.getInteger("chat.deflate.level", Deflater.DEFAULT_COMPRESSION);
+    private static final int MAX_INFLATED = 16 * 1024 * 1024;
+    private static final byte[] TAIL = {0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    // Clave del estado por conexión en ExtensionContext
+    private static final String K_STATE = PerMessageDeflate.class.getName();
+
+    // Contadores globales
+    private static final AtomicLong compressed = new AtomicLong();
+    private static final AtomicLong skipped = new AtomicLong();
+    private static final AtomicLong bytesIn = new AtomicLong();
+    private static final AtomicLong bytesOut = new AtomicLong();
+    private static final AtomicLong deflateNanos = new AtomicLong();
+    private static final AtomicLong inflated = new AtomicLong();
+    private static final AtomicLong inflatedBytes = new AtomicLong();
+    private static final AtomicLong inflateNanos = new AtomicLong();
+
+    private final boolean client;
+
+    private PerMessageDeflate(boolean client) {
+        this.client = client;
+    }
+
+    /** Extensión para el servidor: acepta ofertas de los clientes. */
+    public static PerMessageDeflate server() {
+        return new PerMessageDeflate(false);
+    }
+
+    /** Extensión para el cliente: se ofrece en el handshake. */
+    public static PerMessageDeflate client() {
+        return new PerMessageDeflate(true);
+    }
+
+    /**
+     * Si el servidor puede aceptar una oferta: Java solo comprime con ventana de 15 bits, así que
+     * se rechazan las que piden al servidor una ventana menor.
+     */
+    public static boolean acceptable(Extension offer) {
+        if (!NAME.equals(offer.getName())) {
+            return false;
+        }
+        for (Extension.Parameter p : offer.getParameters()) {
+            if (SERVER_MAX_WINDOW_BITS.equals(p.getName()) && !"15".equals(p.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    // Lo que ofrece el cliente
+    @Override
+    public List<Extension.Parameter> getParameters() {
+        if (!client || CONTEXT_TAKEOVER) {
+            return Collections.emptyList();
+        }
+        List<Extension.Parameter> params = new ArrayList<>(2);
+        params.add(param(SERVER_NO_CONTEXT_TAKEOVER));
+        params.add(param(CLIENT_NO_CONTEXT_TAKEOVER));
+        return params;
+    }
+
+    // Servidor: responde a la oferta del cliente
+    @Override
+    public List<Extension.Parameter> onExtensionNegotiation(ExtensionContext context, List<Extension.Parameter> requested) {
+        boolean serverReset = !CONTEXT_TAKEOVER;
+        boolean clientReset = false;
+        for (Extension.Parameter p : requested) {
+            if (SERVER_NO_CONTEXT_TAKEOVER.equals(p.getName())) {
+                serverReset = true;
+            } else if (CLIENT_NO_CONTEXT_TAKEOVER.equals(p.getName())) {
+                clientReset = true;
+            }
+        }
+        context.getProperties().put(K_STATE, new State(serverReset));
+        List<Extension.Parameter> response = new ArrayList<>(2);
+        if (serverReset) {
+            response.add(param(SERVER_NO_CONTEXT_TAKEOVER));
+        }
+        if (clientReset) {
+            response.add(param(CLIENT_NO_CONTEXT_TAKEOVER));
+        }
+        return response;
+    }
+
+    // Cliente: aplica lo que aceptó el servidor
+    @Override
+    public void onHandshakeResponse(ExtensionContext context, List<Extension.Parameter> response) {
+        boolean clientReset = !CONTEXT_TAKEOVER;
+        for (Extension.Parameter p : response) {
+            if (CLIENT_NO_CONTEXT_TAKEOVER.equals(p.getName())) {
+                clientReset = true;
+            }
+        }
+        context.getProperties().put(K_STATE, new State(clientReset));
+    }
+
+    @Override
+    public Frame processOutgoing(ExtensionContext context, Frame frame) {
+        State state = state(context);
+        if (state == null || frame.isControlFrame()) {
+            return frame;
+        }
+        byte opcode = frame.getOpcode();
+        // Solo mensajes completos: un mensaje fragmentado sale tal cual en todos sus frames
+        if (opcode == 0 || !frame.isFin() || frame.getPayloadLength() < MIN_BYTES) {
+            if (opcode != 0) {
+                skipped.incrementAndGet();
+            }
+            return frame;
+        }
+        byte[] payload = frame.getPayloadData();
+        long start = System.nanoTime();
+        byte[] out = state.deflate(payload);
+        deflateNanos.addAndGet(System.nanoTime() - start);
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(payload.length);
+        bytesOut.addAndGet(out.length);
+        return Frame.builder(frame).rsv1(true).payloadData(out).build();
+    }
+
+    @Override
+    public Frame processIncoming(ExtensionContext context, Frame frame) {
+        State state = state(context);
+        if (state == null || frame.isControlFrame()) {
+            return frame;
+        }
+        if (frame.getOpcode() != 0) {
+            state.incomingCompressed = frame.isRsv1();
+        }
+        if (!state.incomingCompressed) {
+            return frame;
+        }
+        long start = System.nanoTime();
+        byte[] out = state.inflate(frame.getPayloadData(), frame.isFin());
+        inflateNanos.addAndGet(System.nanoTime() - start);
+        if (frame.isFin()) {
+            inflated.incrementAndGet();
+        }
+        inflatedBytes.addAndGet(out.length);
+        return Frame.builder(frame).rsv1(false).payloadData(out).build();
+    }
+
+    @Override
+    public void destroy(ExtensionContext context) {
+        Object state = context.getProperties().remove(K_STATE);
+        if (state instanceof State) {
+            ((State) state).end();
+        }
+    }
+
+    private static State state(ExtensionContext context) {
+        return (State) context.getProperties().get(K_STATE);
+    }
+
+    private static Extension.Parameter param(String name) {
+        return new Extension.Parameter() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String getValue() {
+                return null;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------- estadísticas
+
+    public static long compressedCount() { return compressed.get(); }
+    public static long skippedCount() { return skipped.get(); }
+    public static long bytesBeforeCompression() { return bytesIn.get(); }
+    public static long bytesAfterCompression() { return bytesOut.get(); }
+    public static long deflateNanos() { return deflateNanos.get(); }
+    public static long inflatedCount() { return inflated.get(); }
+    public static long inflatedBytes() { return inflatedBytes.get(); }
+    public static long inflateNanos() { return inflateNanos.get(); }
+
+    /** Tamaño comprimido / original de lo comprimido hasta ahora (1.0 si aún no hay datos). */
+    public static double ratio() {
+        long in = bytesIn.get();
+        return in == 0 ? 1.0 : (double) bytesOut.get() / in;
+    }
+
+    public static String summary() {
+        return String.format("deflate: comprimidos=%d omitidos=%d bytes=%d->%d ratio=%.3f cpu=%dms | inflate: mensajes=%d bytes=%d cpu=%dms",
+                compressedCount(), skippedCount(), bytesBeforeCompression(), bytesAfterCompression(), ratio(),
+                deflateNanos() / 1_000_000, inflatedCount(), inflatedBytes(), inflateNanos() / 1_000_000);
+    }
+
+    // ---------------------------------------------------------------- estado por conexión
+
+    private static final class State {
+        private final boolean resetEachMessage;
+        private final Deflater deflater = new Deflater(LEVEL, true);
+        private final Inflater inflater = new Inflater(true);
+        // Cada sentido tiene su buffer y su candado: se comprime en los hilos de envío mientras el
+        // hilo lector descomprime, y un buffer compartido mezclaría la salida de ambos
+        private final byte[] deflateChunk = new byte[8192];
+        private final byte[] inflateChunk = new byte[8192];
+        private final Object inflateLock = new Object();
+        boolean incomingCompressed;
+
+        State(boolean resetEachMessage) {
+            this.resetEachMessage = resetEachMessage;
+        }
+
+        // Puede llamarse desde varios hilos de envío de la misma sesión
+        synchronized byte[] deflate(byte[] payload) {
+            deflater.setInput(payload);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, payload.length / 2));
+            int n;
+            do {
+                n = deflater.deflate(deflateChunk, 0, deflateChunk.length, Deflater.SYNC_FLUSH);
+                out.write(deflateChunk, 0, n);
+            } while (n == deflateChunk.length); // con SYNC_FLUSH, un bloque incompleto indica que ya no queda salida
+            if (resetEachMessage) {
+                deflater.reset();
+            }
+            byte[] result = out.toByteArray();
+            // El flush termina en 00 00 FF FF, que la RFC manda quitar
+            if (result.length >= 4 && endsWithTail(result)) {
+                result = Arrays.copyOf(result, result.length - 4);
+            }
+            return result;
+        }
+
+        byte[] inflate(byte[] payload, boolean fin) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, payload.length * 3));
+            try {
+                synchronized (inflateLock) {
+                    feed(payload, out);
+                    if (fin) {
+                        feed(TAIL, out);
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Datos permessage-deflate inválidos", e);
+            }
+            return out.toByteArray();
+        }
+
+        // Con inflateLock tomado
+        private void feed(byte[] input, ByteArrayOutputStream out) throws DataFormatException {
+            inflater.setInput(input);
+            while (true) {
+                int n = inflater.inflate(inflateChunk);
+                if (n == 0) {
+                    if (inflater.needsInput() || inflater.finished() || inflater.needsDictionary()) {
+                        return;
+                    }
+                    continue;
+                }
+                out.write(inflateChunk, 0, n);
+                if (out.size() > MAX_INFLATED) {
+                    throw new IllegalStateException("Mensaje descomprimido demasiado grande");
+                }
+            }
+        }
+
+        private static boolean endsWithTail(byte[] b) {
+            int i = b.length - 4;
+            return b[i] == 0 && b[i + 1] == 0 && b[i + 2] == (byte) 0xFF && b[i + 3] == (byte) 0xFF;
+        }
+
+        void end() {
+            synchronized (this) {
+                deflater.end();
+            }
+            synchronized (inflateLock) {
+                inflater.end();
+            }
+        }
+    }
+}
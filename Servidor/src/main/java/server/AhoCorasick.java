@@ -0,0 +1,173 @@
+package server;
+
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Autómata de Aho-Corasick: busca todos los patrones a la vez en una sola pasada por el texto,
+ * con coste lineal en la longitud del texto más el número de coincidencias, sin expresiones
+ * regulares. Es inmutable una vez construido, así que varios hilos lo usan sin candados y se
+ * sustituye entero para recargar la lista de patrones.
+ *
+ * <p>La comparación ignora mayúsculas y tildes ({@link #fold(char)}), carácter a carácter, de modo
+ * que las posiciones de las coincidencias son las del texto original. Las transiciones se guardan
+ * en arrays ordenados por estado (búsqueda binaria) y, para la raíz, en una tabla ASCII directa.
+ */
+final class AhoCorasick {
+    /** Recibe cada coincidencia: patrón, tipo y rango {@code [start, end)} en el texto. */
+    interface Listener {
+        void onMatch(int pattern, int kind, int start, int end);
+    }
+
+    private static final char[] FOLD = new char[0x250];
+    static {
+        for (char c = 0; c < FOLD.length; c++) {
+            String base = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+            FOLD[c] = Character.toLowerCase(base.charAt(0));
+        }
+    }
+
+    private final char[][] keys;
+    private final int[][] next;
+    private final int[] rootAscii = new int[128];
+    private final int[] fail;
+    private final int[] output;     // patrón que termina en el estado, o -1
+    private final int[] dictLink;   // siguiente estado con salida en la cadena de fallos, o 0
+    private final int[] lengths;    // por patrón
+    private final int[] kinds;      // por patrón
+    private final int patternCount;
+
+    private AhoCorasick(List<String> patterns, List<Integer> patternKinds) {
+        // Trie con mapas mientras se construye
+        List<Map<Character, Integer>> trie = new ArrayList<>();
+        List<Integer> out = new ArrayList<>();
+        trie.add(new HashMap<>());
+        out.add(-1);
+        List<Integer> lens = new ArrayList<>();
+        List<Integer> ks = new ArrayList<>();
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = fold(pattern.charAt(i));
+                Integer child = trie.get(state).get(c);
+                if (child == null) {
+                    child = trie.size();
+                    trie.get(state).put(c, child);
+                    trie.add(new HashMap<>());
+                    out.add(-1);
+                }
+                state = child;
+            }
+            if (out.get(state) < 0) {
+                out.set(state, lens.size());
+                lens.add(pattern.length());
+                ks.add(patternKinds.get(p));
+            }
+        }
+        int n = trie.size();
+        keys = new char[n][];
+        next = new int[n][];
+        fail = new int[n];
+        output = new int[n];
+        dictLink = new int[n];
+        for (int s = 0; s < n; s++) {
+            Map<Character, Integer> children = trie.get(s);
+            char[] k = new char[children.size()];
+            int i = 0;
+            for (char c : children.keySet()) {
+                k[i++] = c;
+            }
+            Arrays.sort(k);
+            int[] t = new int[k.length];
+            for (i = 0; i < k.length; i++) {
+                t[i] = children.get(k[i]);
+            }
+            keys[s] = k;
+            next[s] = t;
+            output[s] = out.get(s);
+        }
+        Arrays.fill(rootAscii, -1);
+        for (int i = 0; i < keys[0].length; i++) {
+            if (keys[0][i] < 128) {
+                rootAscii[keys[0][i]] = next[0][i];
+            }
+        }
+        // Enlaces de fallo por anchura: el fallo de un hijo es la transición del fallo del padre
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : next[0]) {
+            fail[child] = 0;
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int s = queue.poll();
+            for (int i = 0; i < keys[s].length; i++) {
+                char c = keys[s][i];
+                int child = next[s][i];
+                int f = fail[s];
+                int t;
+                while ((t = step(f, c)) < 0 && f != 0) {
+                    f = fail[f];
+                }
+                fail[child] = t >= 0 && t != child ? t : 0;
+                dictLink[child] = output[fail[child]] >= 0 ? fail[child] : dictLink[fail[child]];
+                queue.add(child);
+            }
+        }
+        lengths = lens.stream().mapToInt(Integer::intValue).toArray();
+        kinds = ks.stream().mapToInt(Integer::intValue).toArray();
+        patternCount = lengths.length;
+    }
+
+    /** Construye el autómata; {@code kinds.get(i)} es el tipo del patrón {@code i}. Los vacíos se ignoran. */
+    static AhoCorasick build(List<String> patterns, List<Integer> kinds) {
+        List<String> p = new ArrayList<>(patterns.size());
+        List<Integer> k = new ArrayList<>(patterns.size());
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i) != null && !patterns.get(i).isEmpty()) {
+                p.add(patterns.get(i));
+                k.add(kinds.get(i));
+            }
+        }
+        return new AhoCorasick(p, k);
+    }
+
+    /** Minúscula y sin tilde, para los caracteres latinos; el resto solo en minúscula. */
+    static char fold(char c) {
+        return c < FOLD.length ? FOLD[c] : Character.toLowerCase(c);
+    }
+
+    int size() {
+        return patternCount;
+    }
+
+    private int step(int state, char c) {
+        if (state == 0 && c < 128) {
+            return rootAscii[c];
+        }
+        int i = Arrays.binarySearch(keys[state], c);
+        return i >= 0 ? next[state][i] : -1;
+    }
+
+    /** Recorre el texto una vez e informa de cada coincidencia, en orden de posición final. */
+    void scan(CharSequence text, Listener listener) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            int t;
+            while ((t = step(state, c)) < 0 && state != 0) {
+                state = fail[state];
+            }
+            state = t >= 0 ? t : 0;
+            for (int s = output[state] >= 0 ? state : dictLink[state]; s != 0; s = dictLink[s]) {
+                int p = output[s];
+                listener.onMatch(p, kinds[p], i + 1 - lengths[p], i + 1);
+            }
+        }
+    }
+}
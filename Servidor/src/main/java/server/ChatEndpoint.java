@@ -3,89 +3,231 @@ package server;
 import jakarta.websocket.*; // Cambiado de javax.websocket.*
 import jakarta.websocket.server.ServerEndpoint; // Cambiado de javax.websocket.server.ServerEndpoint
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonParseException;
-import com.google.gson.JsonPrimitive;
-import com.google.gson.JsonSerializer;
-import com.google.gson.JsonElement;
+import java.util.function.Predicate;
+import java.nio.ByteBuffer;
+import protocol.BinaryMessageCodec;
+import protocol.Message;
+import protocol.MessageCodec;
+import protocol.MessageTextEncoder;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import jakarta.annotation.PreDestroy; // Cambiado de javax.annotation.PreDestroy
 
-@ServerEndpoint(value = "/chat")
+// El códec compartido (módulo Protocolo) sustituye a Gson: sin reflexión y con la hora en epoch millis
+// Subprotocolos: "chat.bin.v1" (binario compacto) o "chat.json.v1"; sin subprotocolo también es JSON
+@ServerEndpoint(value = "/chat", encoders = MessageTextEncoder.class, decoders = TimedMessageDecoder.class,
+        subprotocols = {BinaryMessageCodec.SUBPROTOCOL, BinaryMessageCodec.JSON_SUBPROTOCOL},
+        configurator = ChatServerConfigurator.class)
 public class ChatEndpoint {
-    private static Set<Session> sessions = new CopyOnWriteArraySet<>();
-    private static Gson gson = new GsonBuilder()
-            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
-            .create();
+    // Conexiones abiertas: sesión, cola de salida (ver SessionOutbox), nombre y salas en un solo registro
+    private static final ConnectionRegistry connections = new ConnectionRegistry();
     private String usuario;
 
-    private static Map<Session, String> usuariosConectados = new ConcurrentHashMap<>();
+    // Índice sala -> miembros: la difusión de un mensaje de chat solo toca su sala
+    private static RoomRegistry rooms = new RoomRegistry();
+    // Últimos N mensajes de chat con su número de secuencia, para reenviarlos a quien se (re)conecta
+    private static MessageHistory history = new MessageHistory();
+    // Nombres y salas de conexiones caídas durante el plazo de reanudación
+    private static final ResumableSessions resumable = new ResumableSessions();
+    private static final int HISTORY_PAGE = 100;
+    private static final int HISTORY_MAX_REPLAY = Integer.getInteger("chat.history.maxReplay", 5000);
+    // Registro persistente en disco (null si está desactivado); al arrancar recarga el anillo
+    private static MessageLog messageLog = MessageLog.openDefault();
+    // Índice invertido para SEARCH (null si está desactivado); se alimenta fuera del camino de difusión
+    private static final SearchIndex searchIndex = SearchIndex.openDefault();
+    // Etapas por las que pasa cada mensaje de chat antes de difundirse (filtro de contenido, límites)
+    private static final InboundPipeline pipeline = InboundPipeline.defaults();
+    private static final int SEARCH_PAGE = Math.max(1, Math.min(100, Integer.getInteger("chat.search.pageSize", 20)));
+    static {
+        if (messageLog != null) {
+            long ultimo = messageLog.lastSeq();
+            history.resumeFrom(ultimo);
+            List<Message> recientes = messageLog.read(ultimo - history.capacity(), history.capacity(), m -> true);
+            for (Message m : recientes) {
+                history.restore(m);
+            }
+            if (searchIndex != null) {
+                searchIndex.restore(recientes);
+            }
+        }
+    }
+    // Presencia versionada: cada alta/baja/renombrado incrementa la versión y se difunde como delta.
+    // El candado ordena snapshot y deltas en las colas, así un cliente nunca ve un delta anterior a su snapshot.
+    private static final Object presenceLock = new Object();
+    private static long presenceVersion = 0;
+    // Usuarios conectados a otros nodos del clúster, por nodo (solo con presenceLock)
+    private static final Map<String, List<String>> remoteUsers = new HashMap<>();
+    // Índice nombre → nodos remotos donde está conectado, para los privados sin tomar presenceLock.
+    // Se escribe con presenceLock junto a remoteUsers; se lee sin candado
+    private static final Map<String, Set<String>> remoteNodes = new ConcurrentHashMap<>();
+    // Bus hacia los demás nodos; sin clúster es un nodo aislado que no publica nada
+    private static volatile MessageBus bus = new MessageBus.Standalone("local");
+
+    // Límite de mensajes entrantes por sesión y presupuesto global de entregas: un mensaje a una sala
+    // de N miembros gasta N fichas, así que un cliente que inunda no multiplica su carga por todo el nodo
+    private static final double RATE_PER_SECOND = Double.parseDouble(System.getProperty("chat.rate.perSecond", "10"));
+    private static final int RATE_BURST = Integer.getInteger("chat.rate.burst", 20);
+    private static final int RATE_MAX_STRIKES = Integer.getInteger("chat.rate.maxStrikes", 100);
+    private static final TokenBucket fanoutBudget = new TokenBucket(
+            Double.parseDouble(System.getProperty("chat.rate.fanoutPerSecond", "200000")),
+            Integer.getInteger("chat.rate.fanoutBurst", 400000));
+    private static final AtomicLong throttledInbound = new AtomicLong();
+    private static final AtomicLong throttledFanout = new AtomicLong();
+    private final TokenBucket inboundBucket = new TokenBucket(RATE_PER_SECOND, RATE_BURST);
+    // Rechazos acumulados de esta sesión (cada mensaje aceptado resta uno); solo desde onMessage
+    private int strikes;
+    private long lastThrottleNotice;
+    // Procesamiento en orden sobre hilos virtuales (null en el modo de hilos de plataforma)
+    private final Executor inbox = VirtualThreads.ENABLED ? VirtualThreads.serial() : null;
+    // Registro de esta sesión, para marcar actividad sin buscar en el mapa en cada mensaje
+    private Connection self;
 
     @OnOpen
     public void onOpen(Session session) {
         // Añadimos la sesión a la lista, pero NO asignamos ni difundimos un nombre temporal.
         // El nombre real se registrará cuando el cliente envíe un mensaje tipo SET_NAME.
-        sessions.add(session);
+        Connection connection = connections.open(session);
+        self = connection;
+        rooms.join(RoomRegistry.DEFAULT_ROOM, connection);
+        sendPresenceSnapshot(session);
+        Heartbeat.watch(connection, ChatEndpoint::evict);
         logEvent("OPEN", "Sesión abierta: " + session.getId());
     }
 
     @OnClose
     public void onClose(Session session) {
-        sessions.remove(session);
-        String usuarioDesconectado = usuariosConectados.remove(session);
-        broadcastMessage(new Message(usuarioDesconectado, "se ha desconectado", "DESCONEXION"));
-        logEvent("CLOSE", "Usuario desconectado: " + usuarioDesconectado);
+        release(session);
     }
 
-    @OnMessage
-    public void onMessage(String mensaje, Session session) {
-        try {
-            // Validación básica del mensaje
-            if (mensaje == null || mensaje.trim().isEmpty()) {
-                session.getBasicRemote().sendText(gson.toJson(
-                    new Message("Sistema", "Mensaje inválido", "ERROR")));
+    // Baja de una conexión: registro y salas. Con nombre y token de reanudación queda aparcada y la
+    // salida solo se anuncia si no vuelve a tiempo. Idempotente (cierre normal o descarte por latidos)
+    private static void release(Session session) {
+        Connection connection = connections.remove(session);
+        if (connection == null) {
+            return;
+        }
+        connection.outbox.close();
+        Set<String> salas = rooms.leaveAll(connection);
+        String usuarioDesconectado;
+        synchronized (presenceLock) {
+            // Ya marcada como cerrada: un SET_NAME concurrente no llegará a anunciarla
+            usuarioDesconectado = connection.name();
+            if (resumable.park(connection, salas, p -> announceLeft(p.name, "plazo de reanudación vencido"))) {
+                logEvent("CLOSE", "Sesión aparcada: " + usuarioDesconectado + " [" + connection.outbox + "]");
                 return;
             }
+        }
+        announceLeft(usuarioDesconectado, String.valueOf(connection.outbox));
+    }
+
+    // Anuncia la salida de un usuario (presencia y aviso de desconexión)
+    private static void announceLeft(String usuario, String detalles) {
+        if (usuario != null) {
+            synchronized (presenceLock) {
+                broadcastPresence("USER_LEFT", usuario, null);
+            }
+            broadcastMessage(new Message(usuario, "se ha desconectado", "DESCONEXION"));
+        }
+        logEvent("CLOSE", "Usuario desconectado: " + usuario + " [" + detalles + "]");
+    }
+
+    // Validación y límite de ritmo en el hilo del contenedor; el procesamiento, en el mismo hilo o,
+    // en modo de hilos virtuales, en la cola de la sesión (mismo orden, sin ocupar el contenedor)
+    @OnMessage
+    public void onMessage(Message mensajeObj, Session session) {
+        // Validación básica del mensaje (el texto mal formado no llega aquí: ver onError)
+        if (mensajeObj == null) {
+            sendTo(session, new Message("Sistema", "Mensaje inválido", "ERROR"));
+            return;
+        }
+
+        ChatMetrics.INBOUND.increment();
+        if (self != null) {
+            self.touch();
+        }
+        if (!inboundBucket.tryAcquire(1)) {
+            throttleInbound(session);
+            return;
+        }
+        if (strikes > 0) {
+            strikes--;
+        }
+
+        if (inbox == null) {
+            process(mensajeObj, session);
+            return;
+        }
+        try {
+            inbox.execute(() -> process(mensajeObj, session));
+        } catch (RejectedExecutionException e) {
+            logger.fine("Mensaje de " + session.getId() + " descartado: servidor apagándose");
+        }
+    }
+
+    private void process(Message mensajeObj, Session session) {
+        Connection connection = connections.get(session);
+        if (connection == null) {
+            return; // cerrada mientras esperaba en la cola
+        }
+        try {
 
-            Message mensajeObj = gson.fromJson(mensaje, Message.class);
             // Manejar petición para establecer nombre de usuario
             if (mensajeObj != null && "SET_NAME".equalsIgnoreCase(mensajeObj.getTipo())) {
-                String nuevo = mensajeObj.getUsuario();
-                if (nuevo == null || nuevo.trim().isEmpty()) {
-                    session.getBasicRemote().sendText(gson.toJson(
-                        new Message("Sistema", "Nombre inválido", "ERROR")));
-                    return;
-                }
-                String anterior = usuariosConectados.get(session);
-                usuariosConectados.put(session, nuevo);
-                // Log en servidor
-                logEvent("CONEXION", "Usuario conectado: " + nuevo + " (sesión " + session.getId() + ")");
-                // Notificar a todos la lista actualizada y la conexión
-                Message listaUsuarios = new Message("Sistema",
-                    "Usuarios conectados: " + String.join(", ", usuariosConectados.values()),
-                    "INFO");
-                broadcastMessage(listaUsuarios);
-                broadcastMessage(new Message(nuevo, "se ha conectado", "CONEXION"));
-                // Si el nombre anterior existía, era distinto y NO era un nombre temporal (Usuario\d+), notificar cambio de nombre
-                if (anterior != null && !anterior.equals(nuevo) && !anterior.matches("Usuario\\d+")) {
-                    broadcastMessage(new Message("Sistema", anterior + " ahora es " + nuevo, "INFO"));
-                }
+                setName(connection, mensajeObj.getUsuario());
+                return;
+            }
+
+            // Reanudación tras una caída: {"tipo":"RESUME","usuario":nombre,"contenido":token}
+            if (mensajeObj != null && "RESUME".equalsIgnoreCase(mensajeObj.getTipo())) {
+                resume(connection, mensajeObj.getUsuario(), mensajeObj.getContenido());
+                return;
+            }
+
+            // Petición explícita de snapshot (p. ej. el cliente detectó un hueco de versiones)
+            if (mensajeObj != null && "PRESENCE".equalsIgnoreCase(mensajeObj.getTipo())) {
+                sendPresenceSnapshot(session);
+                return;
+            }
+
+            // Historial: {"tipo":"HISTORY","seq":X} devuelve lo guardado con secuencia > X
+            if (mensajeObj != null && "HISTORY".equalsIgnoreCase(mensajeObj.getTipo())) {
+                replayHistory(connection, mensajeObj.getSeq() != null ? mensajeObj.getSeq() : 0);
+                return;
+            }
+
+            // Búsqueda: {"tipo":"SEARCH","contenido":consulta,"seq":cursor}; ver SearchIndex
+            if (mensajeObj != null && "SEARCH".equalsIgnoreCase(mensajeObj.getTipo())) {
+                search(mensajeObj, connection);
+                return;
+            }
+
+            // Mensaje privado: {"tipo":"DIRECT","destinatario":nombre,"contenido":...}; no pasa por la difusión
+            if (mensajeObj != null && "DIRECT".equalsIgnoreCase(mensajeObj.getTipo())) {
+                sendDirect(mensajeObj, connection);
+                return;
+            }
+
+            // Entrar o salir de una sala: {"tipo":"JOIN","sala":"nombre"}
+            if (mensajeObj != null && ("JOIN".equalsIgnoreCase(mensajeObj.getTipo())
+                    || "LEAVE".equalsIgnoreCase(mensajeObj.getTipo()))) {
+                handleRoomRequest(mensajeObj, connection);
                 return;
             }
             
             // Validación del objeto mensaje
             if (mensajeObj.getUsuario() == null || mensajeObj.getContenido() == null) {
-                session.getBasicRemote().sendText(gson.toJson(
-                    new Message("Sistema", "Formato de mensaje inválido", "ERROR")));
+                sendTo(session, new Message("Sistema", "Formato de mensaje inválido", "ERROR"));
                 return;
             }
 
@@ -94,26 +236,378 @@ public class ChatEndpoint {
                 mensajeObj.setContenido(mensajeObj.getContenido().substring(0, 500));
             }
 
+            if (mensajeObj.getHora() == 0) {
+                mensajeObj.setHora(System.currentTimeMillis());
+            }
+
+            // Los mensajes de chat van a una sala; sin sala, a la sala por defecto
+            String sala = mensajeObj.getSala() == null
+                    ? RoomRegistry.DEFAULT_ROOM : RoomRegistry.normalize(mensajeObj.getSala());
+            if (sala == null || !rooms.isMember(sala, connection)) {
+                sendTo(session, new Message("Sistema", "No perteneces a la sala indicada", "ERROR"));
+                return;
+            }
+            mensajeObj.setSala(sala);
+
+            String rechazo = pipeline.process(mensajeObj, connection);
+            if (rechazo != null) {
+                sendTo(session, new Message("Sistema", rechazo, "ERROR"));
+                return;
+            }
+
+            if (!fanoutBudget.tryAcquire(rooms.members(sala).size())) {
+                throttledFanout.incrementAndGet();
+                sendTo(session, new Message("Sistema", "Servidor saturado: mensaje no enviado, inténtalo en unos segundos", "ERROR"));
+                return;
+            }
+
             broadcastMessage(mensajeObj);
         } catch (Exception e) {
+            sendTo(session, new Message("Sistema", "Error en el procesamiento del mensaje", "ERROR"));
+        }
+    }
+
+    private static void setName(Connection connection, String nuevo) {
+        Session session = connection.session;
+        if (nuevo == null || nuevo.trim().isEmpty()) {
+            sendTo(session, new Message("Sistema", "Nombre inválido", "ERROR"));
+            return;
+        }
+        String anterior;
+        synchronized (presenceLock) {
+            if (connection.isClosed()) {
+                return;
+            }
+            anterior = connections.rename(connection, nuevo);
+            if (anterior == null) {
+                broadcastPresence("USER_JOINED", nuevo, null);
+            } else if (!anterior.equals(nuevo)) {
+                broadcastPresence("USER_RENAMED", nuevo, anterior);
+            }
+        }
+        // Log en servidor
+        logEvent("CONEXION", "Usuario conectado: " + nuevo + " (sesión " + session.getId() + ")");
+        if (anterior == null) {
+            broadcastMessage(new Message(nuevo, "se ha conectado", "CONEXION"));
+        }
+        if (ResumableSessions.ENABLED) {
+            sendTo(session, new Message("Sistema", resumable.issue(connection), "RESUME"));
+        }
+    }
+
+    // Recupera nombre y salas de una conexión aparcada sin anunciar nada; con un token desconocido
+    // o vencido (p. ej. tras reiniciar el servidor) es una entrada normal con SET_NAME
+    private static void resume(Connection connection, String nombre, String token) {
+        ResumableSessions.Parked aparcada;
+        synchronized (presenceLock) {
+            if (connection.isClosed()) {
+                return;
+            }
+            aparcada = connection.name() == null ? resumable.claim(token, nombre) : null;
+            if (aparcada != null) {
+                connections.rename(connection, aparcada.name);
+                for (String sala : new HashSet<>(connection.rooms)) {
+                    if (!aparcada.rooms.contains(sala)) {
+                        rooms.leave(sala, connection);
+                    }
+                }
+                for (String sala : aparcada.rooms) {
+                    rooms.join(sala, connection);
+                }
+            }
+        }
+        if (aparcada == null) {
+            setName(connection, nombre);
+            return;
+        }
+        ChatMetrics.RESUMED.increment();
+        logEvent("RESUME", "Sesión reanudada: " + aparcada.name + " (sesión " + connection.id() + ")");
+        sendTo(connection.session, new Message("Sistema", resumable.issue(connection), "RESUME"));
+    }
+
+    // Responde con una página de resultados (más nuevos primero) de las salas de la sesión. El campo
+    // seq de la respuesta es el cursor para pedir la página siguiente; sin él no hay más
+    private static void search(Message peticion, Connection connection) {
+        Session session = connection.session;
+        if (searchIndex == null) {
+            sendTo(session, new Message("Sistema", "La búsqueda está desactivada", "ERROR"));
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            SearchIndex.Page pagina = searchIndex.search(peticion.getContenido(),
+                    peticion.getSeq() != null ? peticion.getSeq() : 0, SEARCH_PAGE,
+                    m -> m.getSala() != null && rooms.isMember(m.getSala(), connection));
+            Message respuesta = new Message("Sistema", peticion.getContenido(), "SEARCH");
+            respuesta.setLote(pagina.mensajes);
+            respuesta.setSeq(pagina.next);
+            sendTo(session, respuesta);
+        } catch (IllegalArgumentException e) {
+            sendTo(session, new Message("Sistema", e.getMessage(), "ERROR"));
+        } finally {
+            ChatMetrics.SEARCH.record(System.nanoTime() - start);
+        }
+    }
+
+    static List<InboundPipeline.Stage> pipelineStages() {
+        return pipeline.stages();
+    }
+
+    static long searchIndexSize() {
+        return searchIndex != null ? searchIndex.indexedCount() : 0;
+    }
+
+    static long searchIndexDropped() {
+        return searchIndex != null ? searchIndex.droppedCount() : 0;
+    }
+
+    static long messageLogWritten() {
+        return messageLog != null ? messageLog.writtenCount() : 0;
+    }
+
+    static long messageLogDropped() {
+        return messageLog != null ? messageLog.droppedCount() : 0;
+    }
+
+    static long busDropped() {
+        return bus.droppedCount();
+    }
+
+    // Entrega un mensaje privado solo a las conexiones del destinatario, buscadas por nombre en O(1),
+    // y una copia a las del remitente (confirmación y resto de sus dispositivos). Sin secuencia ni
+    // historial: no se reenvía al reconectar. Si el destinatario está en otro nodo se publica por el bus
+    private static void sendDirect(Message peticion, Connection remitente) {
+        Session session = remitente.session;
+        String usuario = remitente.name();
+        if (usuario == null) {
+            sendTo(session, new Message("Sistema", "Registra tu nombre antes de enviar mensajes privados", "ERROR"));
+            return;
+        }
+        String destino = peticion.getDestinatario();
+        String contenido = peticion.getContenido();
+        if (destino == null || destino.trim().isEmpty() || contenido == null) {
+            sendTo(session, new Message("Sistema", "Formato de mensaje inválido", "ERROR"));
+            return;
+        }
+        if (contenido.length() > 500) {
+            contenido = contenido.substring(0, 500);
+        }
+        // El remitente es el nombre registrado de la conexión, no el que diga el mensaje
+        Message directo = new Message(usuario, contenido, "DIRECT");
+        directo.setDestinatario(destino);
+        String rechazo = pipeline.process(directo, remitente);
+        if (rechazo != null) {
+            sendTo(session, new Message("Sistema", rechazo, "ERROR"));
+            return;
+        }
+        OutboundFrame frame = new OutboundFrame(directo);
+
+        Set<Connection> locales = connections.byName(destino);
+        boolean entregado = false;
+        for (Connection destinatario : locales) {
+            entregado |= destinatario.outbox.offer(frame);
+        }
+        boolean remoto = remoteNodes.containsKey(destino);
+        if (remoto) {
+            bus.publish(frame.text());
+        }
+        if (!entregado && !remoto) {
+            sendTo(session, new Message("Sistema", locales.isEmpty()
+                    ? "El usuario " + destino + " no está conectado"
+                    : "No se pudo entregar el mensaje a " + destino, "ERROR"));
+            return;
+        }
+        ChatMetrics.DIRECT.increment();
+        if (!usuario.equals(destino)) {
+            for (Connection propia : connections.byName(usuario)) {
+                propia.outbox.offer(frame);
+            }
+        }
+    }
+
+    // Mensaje por encima del límite: se descarta, se avisa como mucho una vez por segundo y,
+    // si la sesión sigue insistiendo, se cierra por violar la política
+    private void throttleInbound(Session session) {
+        throttledInbound.incrementAndGet();
+        if (++strikes >= RATE_MAX_STRIKES) {
+            logger.warning("Cerrando sesión " + session.getId() + " por exceso de mensajes");
             try {
-                session.getBasicRemote().sendText(gson.toJson(
-                    new Message("Sistema", "Error en el procesamiento del mensaje", "ERROR")));
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                session.close(new CloseReason(CloseReason.CloseCodes.VIOLATED_POLICY, "Demasiados mensajes"));
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Error al cerrar sesión abusiva", e);
             }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastThrottleNotice >= 1000) {
+            lastThrottleNotice = now;
+            sendTo(session, new Message("Sistema", "Demasiados mensajes: espera un momento", "ERROR"));
+        }
+    }
+
+    static int activeSessions() {
+        return connections.size();
+    }
+
+    static int roomCount() {
+        return rooms.roomCount();
+    }
+
+    // Suma de las colas de salida; se recorre al consultar las métricas, no en cada envío
+    static long queuedSends() {
+        long total = 0;
+        for (Connection connection : connections.all()) {
+            total += connection.outbox.getDepth();
+        }
+        return total;
+    }
+
+    static long throttledInboundCount() {
+        return throttledInbound.get();
+    }
+
+    static long throttledFanoutCount() {
+        return throttledFanout.get();
+    }
+
+    // Clientes binarios: mismo tratamiento que el texto tras decodificar
+    @OnMessage
+    public void onBinaryMessage(ByteBuffer datos, Session session) {
+        Message mensajeObj;
+        long start = System.nanoTime();
+        try {
+            mensajeObj = BinaryMessageCodec.decode(datos);
+        } catch (IllegalArgumentException e) {
+            sendTo(session, new Message("Sistema", "Mensaje inválido", "ERROR"));
+            return;
+        } finally {
+            ChatMetrics.DECODE.record(System.nanoTime() - start);
+        }
+        onMessage(mensajeObj, session);
+    }
+
+    // Respuesta a los pings de Heartbeat
+    @OnMessage
+    public void onPong(PongMessage pong, Session session) {
+        if (self != null) {
+            Heartbeat.pong(self, pong.getApplicationData());
+        }
+    }
+
+    // Conexión sin respuesta a los latidos: se da de baja ya (el onClose posterior no hará nada)
+    // y se cierra sin esperar al cliente
+    private static void evict(Connection connection) {
+        release(connection.session);
+        try {
+            connection.session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, "Sin respuesta a los latidos"));
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.FINE, "Error al cerrar sesión " + connection.id(), e);
+        }
+    }
+
+    // Difunde un delta de presencia con la siguiente versión. Llamar con presenceLock tomado.
+    private static void broadcastPresence(String tipo, String usuario, String anterior) {
+        Message delta = new Message(usuario, anterior, tipo);
+        delta.setVersion(++presenceVersion);
+        broadcastMessage(delta);
+    }
+
+    // Usuarios de este nodo: los conectados y los aparcados a la espera de reanudar. Con presenceLock.
+    private static List<String> localNames() {
+        List<String> nombres = connections.names();
+        nombres.addAll(resumable.names());
+        return nombres;
+    }
+
+    private static void sendPresenceSnapshot(Session session) {
+        synchronized (presenceLock) {
+            Message snapshot = new Message("Sistema", null, "PRESENCE_SNAPSHOT");
+            List<String> todos = localNames();
+            remoteUsers.values().forEach(todos::addAll);
+            snapshot.setUsuarios(todos);
+            snapshot.setVersion(presenceVersion);
+            // Última secuencia de este nodo: el cliente detecta si su lastSeq es de otra numeración
+            snapshot.setSeq(history.lastSeq());
+            sendTo(session, snapshot);
+        }
+    }
+
+    // Reenvía el historial de las salas de la sesión en frames HISTORY de hasta HISTORY_PAGE mensajes.
+    // Lo reciente sale del anillo en memoria; lo anterior a él, del registro persistente. Ninguna de
+    // las dos lecturas toma candados del camino de difusión.
+    private void replayHistory(Connection connection, long sinceSeq) {
+        Session session = connection.session;
+        long desde = Math.max(sinceSeq, history.lastSeq() - HISTORY_MAX_REPLAY);
+        Predicate<Message> deSusSalas = m -> m.getSala() != null && rooms.isMember(m.getSala(), connection);
+        while (true) {
+            List<Message> pagina;
+            boolean desdeDisco = messageLog != null && desde + 1 < history.firstSeq();
+            if (desdeDisco) {
+                pagina = messageLog.read(desde, HISTORY_PAGE, deSusSalas);
+                if (pagina.isEmpty()) {
+                    // Nada más en disco antes del anillo: seguir desde memoria
+                    desde = history.firstSeq() - 1;
+                    continue;
+                }
+            } else {
+                pagina = history.since(desde, deSusSalas, HISTORY_PAGE);
+            }
+            if (pagina.isEmpty()) {
+                return;
+            }
+            Message lote = new Message("Sistema", null, "HISTORY");
+            lote.setLote(pagina);
+            sendTo(session, lote);
+            desde = pagina.get(pagina.size() - 1).getSeq();
+            if (!desdeDisco && pagina.size() < HISTORY_PAGE) {
+                return;
+            }
+        }
+    }
+
+    private void handleRoomRequest(Message peticion, Connection connection) {
+        Session session = connection.session;
+        boolean join = "JOIN".equalsIgnoreCase(peticion.getTipo());
+        // Se acepta la sala en el campo "sala" o, por comodidad, en "contenido"
+        String sala = RoomRegistry.normalize(peticion.getSala() != null ? peticion.getSala() : peticion.getContenido());
+        if (sala == null) {
+            sendTo(session, new Message("Sistema", "Nombre de sala inválido", "ERROR"));
+            return;
+        }
+        String nombre = connection.name() != null ? connection.name() : "Sesión " + session.getId();
+        Message aviso = new Message(nombre, join ? "se ha unido a la sala" : "ha salido de la sala",
+                join ? "JOIN" : "LEAVE");
+        aviso.setSala(sala);
+        if (join) {
+            if (rooms.join(sala, connection)) {
+                broadcastMessage(aviso);
+                logEvent("JOIN", nombre + " -> " + sala);
+            } else if (rooms.isMember(sala, connection)) {
+                // Ya era miembro: se le confirma solo a él para que pueda volver a esa sala
+                sendTo(session, aviso);
+            }
+        } else if (rooms.leave(sala, connection)) {
+            // El que sale ya no es miembro: se le confirma aparte
+            broadcastMessage(aviso);
+            sendTo(session, aviso);
+            logEvent("LEAVE", nombre + " <- " + sala);
         }
     }
 
     private static final Logger logger = Logger.getLogger(ChatEndpoint.class.getName());
 
-    private void logEvent(String evento, String detalles) {
+    private static void logEvent(String evento, String detalles) {
         logger.log(Level.INFO, String.format("[%s] %s: %s", 
             LocalDateTime.now(), evento, detalles));
     }
 
     @OnError
     public void onError(Session session, Throwable throwable) {
+        if (throwable instanceof DecodeException) {
+            // Texto que no es un mensaje válido: se responde con ERROR y la sesión sigue abierta
+            sendTo(session, new Message("Sistema", "Mensaje inválido", "ERROR"));
+            return;
+        }
         try {
             logEvent("ERROR", "Sesión: " + session.getId() + " - " + throwable.getMessage());
             session.close();
@@ -122,50 +616,204 @@ public class ChatEndpoint {
         }
     }
 
-    private void broadcastMessage(Message mensaje) {
-        String mensajeJson = gson.toJson(mensaje);
-        long startTime = System.currentTimeMillis();
-        
-        for (Session session : sessions) {
-            try {
-                session.getBasicRemote().sendText(mensajeJson);
-                
-                // Verificar latencia
-                long latency = System.currentTimeMillis() - startTime;
-                if (latency > 1000) { // más de 1 segundo
-                    System.out.println("Advertencia: Alta latencia detectada: " + latency + "ms");
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+    // Difunde un mensaje originado en este nodo: a las sesiones locales y, por el bus, al resto del clúster.
+    private static void broadcastMessage(Message mensaje) {
+        OutboundFrame frame = deliverLocal(mensaje);
+        bus.publish(frame.text());
+    }
+
+    // Encola el mensaje en la cola de cada destinatario local; nunca espera a un cliente lento.
+    // Con sala solo se recorren sus miembros; sin sala (avisos del sistema) va a todas las sesiones.
+    // El frame se codifica como mucho una vez por formato (JSON/binario), según lo pidan las colas.
+    private static OutboundFrame deliverLocal(Message mensaje) {
+        long start = System.nanoTime();
+        // Todo lo difundido recibe secuencia; solo los mensajes de chat se guardan en el historial
+        if ("MENSAJE".equalsIgnoreCase(mensaje.getTipo()) && mensaje.getSala() != null) {
+            history.append(mensaje);
+            if (messageLog != null) {
+                messageLog.append(mensaje);
+            }
+            if (searchIndex != null) {
+                searchIndex.offer(mensaje);
             }
+        } else {
+            history.stamp(mensaje);
         }
+        OutboundFrame frame = new OutboundFrame(mensaje);
+        Iterable<Connection> destinatarios = mensaje.getSala() != null ? rooms.members(mensaje.getSala()) : connections.all();
+        for (Connection destinatario : destinatarios) {
+            destinatario.outbox.offer(frame);
+        }
+        ChatMetrics.FANOUT.record(System.nanoTime() - start);
+        return frame;
     }
 
-    @PreDestroy
-        public void cleanup() {
-            for (Session session : sessions) {
+    /**
+     * Conecta el endpoint al clúster. Lo que llega de otros nodos se entrega solo a las sesiones
+     * locales (nunca se vuelve a publicar); su presencia se integra en la versión local.
+     */
+    static void attachBus(MessageBus nuevoBus) {
+        bus = nuevoBus;
+        nuevoBus.start(new MessageBus.Listener() {
+            @Override
+            public void onRemoteMessage(String nodeId, String mensajeJson) {
+                Message mensaje;
                 try {
-                    session.close();
-                } catch (IOException e) {
-                    logger.log(Level.WARNING, "Error al cerrar sesión durante la limpieza", e);
+                    mensaje = MessageCodec.decode(mensajeJson);
+                } catch (IllegalArgumentException e) {
+                    logger.log(Level.WARNING, "Mensaje inválido recibido del nodo " + nodeId, e);
+                    return;
+                }
+                if (mensaje.getTipo() == null) {
+                    return;
                 }
+                String tipo = mensaje.getTipo().toUpperCase();
+                switch (tipo) {
+                    case "PRESENCE_SYNC":
+                        applyRemoteSync(nodeId, mensaje.getUsuarios());
+                        break;
+                    case "USER_JOINED":
+                    case "USER_LEFT":
+                    case "USER_RENAMED":
+                        applyRemotePresence(nodeId, mensaje);
+                        break;
+                    case "DIRECT":
+                        // Privado: solo a las conexiones locales del destinatario, si tiene alguna
+                        OutboundFrame frame = new OutboundFrame(mensaje);
+                        for (Connection destinatario : connections.byName(mensaje.getDestinatario())) {
+                            destinatario.outbox.offer(frame);
+                        }
+                        break;
+                    default:
+                        // La secuencia la pone cada nodo según su propio orden de entrega
+                        mensaje.setSeq(null);
+                        deliverLocal(mensaje);
+                }
+            }
+
+            @Override
+            public void onNodeDown(String nodeId) {
+                applyRemoteSync(nodeId, null);
             }
-            sessions.clear();
-            usuariosConectados.clear();
+
+            @Override
+            public String presenceSync(Runnable descartar) {
+                // Los deltas de presencia se publican con presenceLock: los anteriores van en la
+                // instantánea y se descartan de la cola, los posteriores solo en la cola
+                synchronized (presenceLock) {
+                    descartar.run();
+                    Message sync = new Message("Sistema", null, "PRESENCE_SYNC");
+                    sync.setUsuarios(localNames());
+                    return MessageCodec.encode(sync);
+                }
+            }
+        });
+    }
+
+    // Delta de presencia de otro nodo: se aplica a su lista y se reemite localmente con versión local
+    private static void applyRemotePresence(String nodeId, Message delta) {
+        synchronized (presenceLock) {
+            List<String> usuarios = remoteUsers.computeIfAbsent(nodeId, k -> new ArrayList<>());
+            String tipo = delta.getTipo().toUpperCase();
+            if ("USER_JOINED".equals(tipo)) {
+                usuarios.add(delta.getUsuario());
+            } else if ("USER_LEFT".equals(tipo)) {
+                usuarios.remove(delta.getUsuario());
+            } else {
+                int idx = usuarios.indexOf(delta.getContenido());
+                if (idx >= 0) {
+                    usuarios.set(idx, delta.getUsuario());
+                } else {
+                    usuarios.add(delta.getUsuario());
+                }
+                indexRemote(nodeId, delta.getContenido(), usuarios.contains(delta.getContenido()));
+            }
+            indexRemote(nodeId, delta.getUsuario(), usuarios.contains(delta.getUsuario()));
+            Message local = new Message(delta.getUsuario(), delta.getContenido(), delta.getTipo());
+            local.setVersion(++presenceVersion);
+            deliverLocal(local);
         }
+    }
 
-    // Clase interna para manejar la serialización/deserialización de LocalDateTime
-    private static class LocalDateTimeAdapter implements JsonSerializer<LocalDateTime>, JsonDeserializer<LocalDateTime> {
-        private static final DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    // Estado completo de otro nodo (al conectar) o null si cayó: se emiten los deltas de la diferencia
+    private static void applyRemoteSync(String nodeId, List<String> nuevos) {
+        synchronized (presenceLock) {
+            List<String> antes = remoteUsers.remove(nodeId);
+            List<String> salen = antes != null ? new ArrayList<>(antes) : new ArrayList<>();
+            List<String> entran = new ArrayList<>();
+            if (nuevos != null) {
+                for (String u : nuevos) {
+                    if (!salen.remove(u)) {
+                        entran.add(u);
+                    }
+                }
+                remoteUsers.put(nodeId, new ArrayList<>(nuevos));
+            }
+            for (String u : salen) {
+                indexRemote(nodeId, u, nuevos != null && nuevos.contains(u));
+            }
+            for (String u : entran) {
+                indexRemote(nodeId, u, true);
+            }
+            for (String u : salen) {
+                Message delta = new Message(u, null, "USER_LEFT");
+                delta.setVersion(++presenceVersion);
+                deliverLocal(delta);
+            }
+            for (String u : entran) {
+                Message delta = new Message(u, null, "USER_JOINED");
+                delta.setVersion(++presenceVersion);
+                deliverLocal(delta);
+            }
+        }
+    }
 
-        @Override
-        public JsonElement serialize(LocalDateTime localDateTime, java.lang.reflect.Type type, com.google.gson.JsonSerializationContext jsonSerializationContext) {
-            return new JsonPrimitive(formatter.format(localDateTime));
+    // Mantiene remoteNodes al día con la lista de un nodo. Con presenceLock
+    private static void indexRemote(String nodeId, String usuario, boolean presente) {
+        if (usuario == null) {
+            return;
+        }
+        if (presente) {
+            remoteNodes.computeIfAbsent(usuario, k -> ConcurrentHashMap.newKeySet()).add(nodeId);
+        } else {
+            remoteNodes.computeIfPresent(usuario, (k, nodos) -> {
+                nodos.remove(nodeId);
+                return nodos.isEmpty() ? null : nodos;
+            });
         }
+    }
 
-        @Override
-        public LocalDateTime deserialize(com.google.gson.JsonElement jsonElement, java.lang.reflect.Type type, com.google.gson.JsonDeserializationContext jsonDeserializationContext) throws com.google.gson.JsonParseException {
-            return LocalDateTime.parse(jsonElement.getAsString(), formatter);
+    // Respuesta dirigida a una sola sesión, por la misma cola que la difusión
+    private static void sendTo(Session session, Message mensaje) {
+        Connection connection = connections.get(session);
+        if (connection != null) {
+            connection.outbox.offer(new OutboundFrame(mensaje));
         }
     }
-}
\ No newline at end of file
+
+    @PreDestroy
+        public void cleanup() {
+            // Primero se deja terminar lo que está en curso en hilos virtuales (mensajes a medio procesar)
+            VirtualThreads.shutdown();
+            TimerWheel.stopShared();
+            // Cada cierre espera al frame de cierre; con hilos virtuales van en paralelo
+            List<Runnable> cierres = new ArrayList<>();
+            for (Connection connection : connections.all()) {
+                cierres.add(() -> {
+                    try {
+                        connection.session.close();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Error al cerrar sesión durante la limpieza", e);
+                    }
+                    connection.outbox.close();
+                });
+            }
+            VirtualThreads.runAll(cierres);
+            connections.clear();
+            rooms.clear();
+            resumable.clear();
+            if (searchIndex != null) {
+                searchIndex.close();
+            }
+        }
+}
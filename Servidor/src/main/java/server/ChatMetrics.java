@@ -0,0 +1,250 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+import protocol.PerMessageDeflate;
+
+/**
+ * Métricas del servidor. Las rutas calientes solo incrementan contadores ({@link LongAdder}) o
+ * registran en histogramas ({@link LatencyHistogram}), sin reservar memoria; el formateo se hace
+ * al consultar.
+ *
+ * <p>Se exponen por JMX ({@code chat:type=Metrics}) y, con {@code -Dchat.metrics.port=<puerto>},
+ * en {@code http://host:puerto/metrics} con el formato de texto de Prometheus.
+ */
+final class ChatMetrics implements ChatMetricsMBean {
+    private static final Logger logger = Logger.getLogger(ChatMetrics.class.getName());
+    private static final long SLOW_SEND_LOG_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    // Mensajes recibidos de clientes y tiempo en decodificarlos
+    static final LongAdder INBOUND = new LongAdder();
+    static final LatencyHistogram DECODE = new LatencyHistogram();
+    // Tiempo en encolar un mensaje para todos sus destinatarios locales
+    static final LatencyHistogram FANOUT = new LatencyHistogram();
+    // Desde que se entrega un frame a getAsyncRemote() hasta su confirmación
+    static final LatencyHistogram SEND_LATENCY = new LatencyHistogram();
+    // SENT cuenta frames (un BATCH es uno); el resto, mensajes
+    static final LongAdder SENT = new LongAdder();
+    static final LongAdder SENT_MESSAGES = new LongAdder();
+    static final LongAdder DROPPED = new LongAdder();
+    static final LongAdder FAILED = new LongAdder();
+    static final LongAdder SLOW_SENDS = new LongAdder();
+    // Latidos (ver Heartbeat)
+    static final LongAdder REAPED = new LongAdder();
+    static final LatencyHistogram PING_RTT = new LatencyHistogram();
+    // Tiempo en resolver una petición SEARCH
+    static final LatencyHistogram SEARCH = new LatencyHistogram();
+    // Mensajes privados entregados (ver ChatEndpoint.sendDirect)
+    static final LongAdder DIRECT = new LongAdder();
+    // Conexiones caídas que volvieron con su token de reanudación
+    static final LongAdder RESUMED = new LongAdder();
+
+    private static final AtomicLong lastSlowLog = new AtomicLong(System.nanoTime() - SLOW_SEND_LOG_NANOS);
+    private static final AtomicLong slowSinceLog = new AtomicLong();
+
+    // Muestra para el ritmo de entrada por JMX (solo al consultar)
+    private long rateCount;
+    private long rateAt = System.nanoTime();
+    private double rate;
+
+    private ChatMetrics() {
+    }
+
+    /**
+     * Envío lento: se cuenta siempre, pero el aviso se escribe como mucho una vez cada 10 s con el
+     * número de envíos lentos desde el anterior, en lugar de uno por sesión.
+     */
+    static void slowSend(String sessionId, long nanos) {
+        SLOW_SENDS.increment();
+        slowSinceLog.incrementAndGet();
+        long now = System.nanoTime();
+        long last = lastSlowLog.get();
+        if (now - last >= SLOW_SEND_LOG_NANOS && lastSlowLog.compareAndSet(last, now)) {
+            logger.warning("Advertencia: Alta latencia detectada (" + slowSinceLog.getAndSet(0)
+                    + " envíos lentos en los últimos 10 s; el último en sesión " + sessionId + ": "
+                    + TimeUnit.NANOSECONDS.toMillis(nanos) + "ms)");
+        }
+    }
+
+    /**
+     * Registra el MBean y, si se configuró {@code chat.metrics.port}, arranca el servidor HTTP.
+     *
+     * @return el servidor HTTP para detenerlo al salir, o {@code null} si no se arrancó
+     */
+    static HttpServer start() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ChatMetrics(), new ObjectName("chat:type=Metrics"));
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "No se pudo registrar el MBean de métricas", e);
+        }
+        int port = Integer.getInteger("chat.metrics.port", 0);
+        if (port <= 0) {
+            return null;
+        }
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+            http.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            http.start();
+            logger.info("Métricas en http://0.0.0.0:" + port + "/metrics");
+            return http;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "No se pudo abrir el puerto de métricas " + port, e);
+            return null;
+        }
+    }
+
+    // ---------------------------------------------------------------- Prometheus
+
+    static String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, "chat_active_sessions", "Sesiones WebSocket abiertas en este nodo.", ChatEndpoint.activeSessions());
+        gauge(sb, "chat_rooms", "Salas con al menos un miembro.", ChatEndpoint.roomCount());
+        gauge(sb, "chat_queued_sends", "Frames encolados pendientes de enviar.", ChatEndpoint.queuedSends());
+        gauge(sb, "chat_search_indexed_messages", "Mensajes en el índice de búsqueda.", ChatEndpoint.searchIndexSize());
+        counter(sb, "chat_inbound_messages_total", "Mensajes recibidos de clientes.", INBOUND.sum());
+        counter(sb, "chat_sent_frames_total", "Frames enviados con éxito (un lote cuenta como uno).", SENT.sum());
+        counter(sb, "chat_sent_messages_total", "Mensajes enviados con éxito, sueltos o dentro de un lote.", SENT_MESSAGES.sum());
+        counter(sb, "chat_dropped_sends_total", "Mensajes descartados por colas de salida llenas.", DROPPED.sum());
+        counter(sb, "chat_failed_sends_total", "Mensajes cuyo envío falló.", FAILED.sum());
+        counter(sb, "chat_slow_sends_total", "Envíos que tardaron más de 1 s.", SLOW_SENDS.sum());
+        counter(sb, "chat_throttled_inbound_total", "Mensajes rechazados por el límite por sesión.", ChatEndpoint.throttledInboundCount());
+        counter(sb, "chat_throttled_fanout_total", "Mensajes rechazados por el presupuesto global de entregas.", ChatEndpoint.throttledFanoutCount());
+        summary(sb, "chat_decode_seconds", "Tiempo de decodificación de mensajes entrantes.", DECODE);
+        summary(sb, "chat_fanout_seconds", "Tiempo en encolar un mensaje para todos sus destinatarios.", FANOUT);
+        summary(sb, "chat_send_latency_seconds", "Latencia de cada envío asíncrono hasta su confirmación.", SEND_LATENCY);
+        counter(sb, "chat_reaped_connections_total", "Conexiones cerradas por no responder a los latidos.", REAPED.sum());
+        summary(sb, "chat_search_seconds", "Tiempo en resolver una búsqueda.", SEARCH);
+        counter(sb, "chat_search_index_dropped_total", "Mensajes sin indexar por cola del indexador llena.", ChatEndpoint.searchIndexDropped());
+        counter(sb, "chat_log_written_messages_total", "Mensajes escritos en el registro persistente.", ChatEndpoint.messageLogWritten());
+        counter(sb, "chat_log_dropped_messages_total", "Mensajes sin registrar por cola del escritor llena.", ChatEndpoint.messageLogDropped());
+        counter(sb, "chat_cluster_dropped_messages_total", "Mensajes sin publicar a un nodo por cola del enlace llena.", ChatEndpoint.busDropped());
+        stages(sb, ChatEndpoint.pipelineStages());
+        counter(sb, "chat_direct_messages_total", "Mensajes privados entregados.", DIRECT.sum());
+        counter(sb, "chat_resumed_sessions_total", "Sesiones reanudadas con su token tras una caída.", RESUMED.sum());
+        summary(sb, "chat_ping_rtt_seconds", "Tiempo de ida y vuelta de los pings de latido.", PING_RTT);
+        counter(sb, "chat_deflate_messages_total", "Mensajes comprimidos con permessage-deflate.", PerMessageDeflate.compressedCount());
+        counter(sb, "chat_deflate_skipped_total", "Mensajes no comprimidos por ser menores que el umbral.", PerMessageDeflate.skippedCount());
+        counter(sb, "chat_deflate_input_bytes_total", "Bytes antes de comprimir.", PerMessageDeflate.bytesBeforeCompression());
+        counter(sb, "chat_deflate_output_bytes_total", "Bytes después de comprimir.", PerMessageDeflate.bytesAfterCompression());
+        counter(sb, "chat_deflate_seconds_total", "Tiempo gastado comprimiendo.", PerMessageDeflate.deflateNanos() / 1e9);
+        counter(sb, "chat_inflate_seconds_total", "Tiempo gastado descomprimiendo.", PerMessageDeflate.inflateNanos() / 1e9);
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String help, String type) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "gauge");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, double value) {
+        header(sb, name, help, "counter");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder sb, String name, String help, LatencyHistogram h) {
+        header(sb, name, help, "summary");
+        for (String q : new String[] {"0.5", "0.99", "0.999"}) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(h.quantile(Double.parseDouble(q)) / 1e9).append('\n');
+        }
+        sb.append(name).append("_sum ").append(h.sumNanos() / 1e9).append('\n');
+        sb.append(name).append("_count ").append(h.count()).append('\n');
+    }
+
+    // Métricas por etapa de InboundPipeline, con la etiqueta stage
+    private static void stages(StringBuilder sb, List<InboundPipeline.Stage> stages) {
+        header(sb, "chat_pipeline_stage_seconds", "Tiempo de cada etapa del procesado de mensajes entrantes.", "summary");
+        for (InboundPipeline.Stage s : stages) {
+            String label = "stage=\"" + s.stage.name() + "\"";
+            for (String q : new String[] {"0.5", "0.99", "0.999"}) {
+                sb.append("chat_pipeline_stage_seconds{").append(label).append(",quantile=\"").append(q).append("\"} ")
+                        .append(s.time.quantile(Double.parseDouble(q)) / 1e9).append('\n');
+            }
+            sb.append("chat_pipeline_stage_seconds_sum{").append(label).append("} ").append(s.time.sumNanos() / 1e9).append('\n');
+            sb.append("chat_pipeline_stage_seconds_count{").append(label).append("} ").append(s.time.count()).append('\n');
+        }
+        header(sb, "chat_pipeline_stage_modified_total", "Mensajes modificados por cada etapa.", "counter");
+        for (InboundPipeline.Stage s : stages) {
+            sb.append("chat_pipeline_stage_modified_total{stage=\"").append(s.stage.name()).append("\"} ").append(s.modified.sum()).append('\n');
+        }
+        header(sb, "chat_pipeline_stage_rejected_total", "Mensajes rechazados por cada etapa.", "counter");
+        for (InboundPipeline.Stage s : stages) {
+            sb.append("chat_pipeline_stage_rejected_total{stage=\"").append(s.stage.name()).append("\"} ").append(s.rejected.sum()).append('\n');
+        }
+    }
+
+    // ---------------------------------------------------------------- JMX
+
+    @Override public int getActiveSessions() { return ChatEndpoint.activeSessions(); }
+    @Override public long getInboundMessages() { return INBOUND.sum(); }
+    @Override public long getQueuedSends() { return ChatEndpoint.queuedSends(); }
+    @Override public long getSentFrames() { return SENT.sum(); }
+    @Override public long getSentMessages() { return SENT_MESSAGES.sum(); }
+    @Override public long getDroppedSends() { return DROPPED.sum(); }
+    @Override public long getFailedSends() { return FAILED.sum(); }
+    @Override public long getSlowSends() { return SLOW_SENDS.sum(); }
+    @Override public long getThrottledInbound() { return ChatEndpoint.throttledInboundCount(); }
+    @Override public long getThrottledFanout() { return ChatEndpoint.throttledFanoutCount(); }
+    @Override public long getDecodeP50Micros() { return micros(DECODE, 0.5); }
+    @Override public long getDecodeP99Micros() { return micros(DECODE, 0.99); }
+    @Override public long getFanoutP50Micros() { return micros(FANOUT, 0.5); }
+    @Override public long getFanoutP99Micros() { return micros(FANOUT, 0.99); }
+    @Override public long getFanoutP999Micros() { return micros(FANOUT, 0.999); }
+    @Override public long getSendLatencyP50Micros() { return micros(SEND_LATENCY, 0.5); }
+    @Override public long getSendLatencyP99Micros() { return micros(SEND_LATENCY, 0.99); }
+    @Override public long getSendLatencyP999Micros() { return micros(SEND_LATENCY, 0.999); }
+    @Override public long getReapedConnections() { return REAPED.sum(); }
+    @Override public long getSearchP99Micros() { return micros(SEARCH, 0.99); }
+    @Override public long getDirectMessages() { return DIRECT.sum(); }
+    @Override public long getResumedSessions() { return RESUMED.sum(); }
+    @Override public long getPingRttP50Micros() { return micros(PING_RTT, 0.5); }
+    @Override public long getPingRttP99Micros() { return micros(PING_RTT, 0.99); }
+    @Override public long getLogDroppedMessages() { return ChatEndpoint.messageLogDropped(); }
+    @Override public long getClusterDroppedMessages() { return ChatEndpoint.busDropped(); }
+
+    // Ritmo medio entre dos consultas separadas al menos 1 s
+    @Override
+    public synchronized double getInboundMessagesPerSecond() {
+        long now = System.nanoTime();
+        long elapsed = now - rateAt;
+        if (elapsed >= TimeUnit.SECONDS.toNanos(1)) {
+            long count = INBOUND.sum();
+            rate = (count - rateCount) * 1e9 / elapsed;
+            rateCount = count;
+            rateAt = now;
+        }
+        return rate;
+    }
+
+    private static long micros(LatencyHistogram h, double q) {
+        return TimeUnit.NANOSECONDS.toMicros(h.quantile(q));
+    }
+}
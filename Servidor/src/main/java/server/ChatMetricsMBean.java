@@ -0,0 +1,32 @@
+package server;
+
+/** Vista JMX de {@link ChatMetrics} ({@code chat:type=Metrics}). Latencias en microsegundos. */
+public interface ChatMetricsMBean {
+    int getActiveSessions();
+    long getInboundMessages();
+    double getInboundMessagesPerSecond();
+    long getQueuedSends();
+    long getSentFrames();
+    long getSentMessages();
+    long getDroppedSends();
+    long getFailedSends();
+    long getSlowSends();
+    long getThrottledInbound();
+    long getThrottledFanout();
+    long getDecodeP50Micros();
+    long getDecodeP99Micros();
+    long getFanoutP50Micros();
+    long getFanoutP99Micros();
+    long getFanoutP999Micros();
+    long getSendLatencyP50Micros();
+    long getSendLatencyP99Micros();
+    long getSendLatencyP999Micros();
+    long getReapedConnections();
+    long getSearchP99Micros();
+    long getDirectMessages();
+    long getResumedSessions();
+    long getPingRttP50Micros();
+    long getPingRttP99Micros();
+    long getLogDroppedMessages();
+    long getClusterDroppedMessages();
+}
@@ -0,0 +1,33 @@
+package server;
+
+import jakarta.websocket.Extension;
+import java.util.ArrayList;
+import java.util.List;
+import org.glassfish.tyrus.core.TyrusServerEndpointConfigurator;
+import protocol.PerMessageDeflate;
+
+/**
+ * Configurador del endpoint del chat. Los endpoints anotados no pueden declarar extensiones, así
+ * que aquí se instala {@code permessage-deflate} (salvo {@code -Dchat.deflate.enabled=false}) y se
+ * deja a Tyrus la negociación habitual con las ofertas del cliente.
+ */
+public class ChatServerConfigurator extends TyrusServerEndpointConfigurator {
+    private static final PerMessageDeflate DEFLATE = PerMessageDeflate.server();
+
+    @Override
+    public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+        if (!PerMessageDeflate.ENABLED) {
+            return super.getNegotiatedExtensions(installed, requested);
+        }
+        List<Extension> all = new ArrayList<>(installed);
+        all.add(DEFLATE);
+        // Se descartan las ofertas que no podemos cumplir (ventana del servidor menor de 15 bits)
+        List<Extension> offers = new ArrayList<>(requested.size());
+        for (Extension e : requested) {
+            if (!PerMessageDeflate.NAME.equals(e.getName()) || PerMessageDeflate.acceptable(e)) {
+                offers.add(e);
+            }
+        }
+        return super.getNegotiatedExtensions(all, offers);
+    }
+}
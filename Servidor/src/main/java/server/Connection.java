@@ -0,0 +1,46 @@
+package server;
+
+import jakarta.websocket.Session;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro compacto de una conexión abierta: la sesión, su cola de salida, el nombre con el que se
+ * registró y las salas en las que está. La difusión recorre estos registros y encola directamente
+ * en {@link #outbox}, sin buscar nada por sesión.
+ */
+final class Connection {
+    final Session session;
+    final SessionOutbox outbox;
+    // Índice inverso de RoomRegistry: salas de esta conexión
+    final Set<String> rooms = ConcurrentHashMap.newKeySet(4);
+    // Nombre y estado: solo se modifican con el monitor de este objeto (ver ConnectionRegistry)
+    volatile String name;
+    volatile boolean closed;
+    // Última vez (System.nanoTime) que llegó algo del cliente: mensaje o pong (ver Heartbeat)
+    volatile long lastSeen = System.nanoTime();
+    // Token de reanudación vigente (ver ResumableSessions)
+    volatile String resumeToken;
+
+    Connection(Session session) {
+        this.session = session;
+        this.outbox = new SessionOutbox(session);
+    }
+
+    /** Nombre registrado con {@code SET_NAME}, o {@code null} si aún no tiene. */
+    String name() {
+        return name;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void touch() {
+        lastSeen = System.nanoTime();
+    }
+
+    String id() {
+        return session.getId();
+    }
+}
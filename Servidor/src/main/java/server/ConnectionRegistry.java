@@ -0,0 +1,122 @@
+package server;
+
+import jakarta.websocket.Session;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registro único de las conexiones del nodo: sesión -> {@link Connection} y el índice inverso
+ * nombre -> conexión. Altas y bajas son O(1) (nada de copiar un array por cada conexión, como hacía
+ * {@code CopyOnWriteArraySet}) y {@link #all()} se recorre sin copiar, con la consistencia débil de
+ * {@link ConcurrentHashMap}: una difusión ve o no a una conexión que entra a la vez, pero nunca falla.
+ *
+ * <p>Un mismo nombre puede estar registrado desde varias conexiones (varios dispositivos del mismo
+ * usuario): el índice guarda todas, y al cerrarse o renombrarse una conexión solo sale ella del
+ * conjunto; el nombre desaparece del índice con la última.
+ */
+final class ConnectionRegistry {
+    private final Map<Session, Connection> bySession = new ConcurrentHashMap<>();
+    private final Map<String, Set<Connection>> byName = new ConcurrentHashMap<>();
+
+    Connection open(Session session) {
+        Connection connection = new Connection(session);
+        bySession.put(session, connection);
+        return connection;
+    }
+
+    Connection get(Session session) {
+        return bySession.get(session);
+    }
+
+    /**
+     * Saca la conexión del registro y su nombre del índice, y la marca cerrada. El nombre se
+     * conserva en el registro devuelto para anunciar la salida.
+     *
+     * @return la conexión, o {@code null} si no estaba registrada
+     */
+    Connection remove(Session session) {
+        Connection connection = bySession.remove(session);
+        if (connection != null) {
+            synchronized (connection) {
+                connection.closed = true;
+                if (connection.name != null) {
+                    unindex(connection.name, connection);
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Asigna el nombre de la conexión y actualiza el índice. Una conexión ya cerrada guarda el
+     * nombre pero no entra en el índice.
+     *
+     * @return el nombre anterior, o {@code null} si no tenía
+     */
+    String rename(Connection connection, String name) {
+        synchronized (connection) {
+            String previous = connection.name;
+            connection.name = name;
+            if (!connection.closed) {
+                if (previous != null && !previous.equals(name)) {
+                    unindex(previous, connection);
+                }
+                // Alta y baja dentro de compute: nunca se añade a un conjunto que otra baja acaba de soltar
+                byName.compute(name, (k, set) -> {
+                    Set<Connection> devices = set != null ? set : ConcurrentHashMap.<Connection>newKeySet(2);
+                    devices.add(connection);
+                    return devices;
+                });
+            }
+            return previous;
+        }
+    }
+
+    // Saca la conexión del conjunto del nombre y borra el nombre si queda vacío
+    private void unindex(String name, Connection connection) {
+        byName.computeIfPresent(name, (k, set) -> {
+            set.remove(connection);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /** Conexiones registradas con ese nombre en este nodo (vacío si no hay ninguna); O(1). */
+    Set<Connection> byName(String name) {
+        Set<Connection> set = name != null ? byName.get(name) : null;
+        return set != null ? set : Collections.emptySet();
+    }
+
+    /** Vista de todas las conexiones; se recorre sin copiar. */
+    Collection<Connection> all() {
+        return bySession.values();
+    }
+
+    /** Nombres registrados (una entrada por conexión con nombre). */
+    List<String> names() {
+        List<String> names = new ArrayList<>(bySession.size());
+        for (Connection connection : bySession.values()) {
+            String name = connection.name;
+            if (name != null) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    int size() {
+        return bySession.size();
+    }
+
+    void clear() {
+        for (Connection connection : bySession.values()) {
+            connection.closed = true;
+        }
+        bySession.clear();
+        byName.clear();
+    }
+}
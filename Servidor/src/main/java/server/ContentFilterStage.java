@@ -0,0 +1,196 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Primera etapa de {@link InboundPipeline}: recorre {@code contenido} una sola vez con un autómata
+ * {@link AhoCorasick} que contiene a la vez las palabras prohibidas, los prefijos de enlace
+ * ({@code http://}, {@code https://}, {@code www.}) y la arroba de las menciones. Las palabras
+ * prohibidas se enmascaran con asteriscos (solo como palabra completa: "clase" no cuenta como
+ * "clas"); enlaces y menciones se dejan en el contexto para las etapas siguientes.
+ *
+ * <p>Las palabras salen de {@code chat.filter.words} (separadas por comas) y de
+ * {@code chat.filter.wordsFile} (una por línea, {@code #} para comentarios). El fichero se vigila
+ * cada {@code chat.filter.reloadMs}; al cambiar se construye un autómata nuevo fuera del camino de
+ * los mensajes y se sustituye de golpe: cada mensaje usa el que había al empezar.
+ */
+final class ContentFilterStage implements InboundStage {
+    private static final Logger logger = Logger.getLogger(ContentFilterStage.class.getName());
+
+    static final int BANNED = 0;
+    static final int LINK = 1;
+    static final int MENTION = 2;
+    private static final List<String> LINK_PREFIXES = List.of("http://", "https://", "www.");
+
+    private final List<String> inlineWords;
+    private final Path wordsFile;
+    private volatile AhoCorasick automaton;
+    // Fecha del fichero cargado; se escribe en reload() y se consulta desde la tarea de vigilancia
+    private volatile long fileStamp = Long.MIN_VALUE;
+
+    ContentFilterStage(List<String> inlineWords, Path wordsFile) {
+        this.inlineWords = inlineWords;
+        this.wordsFile = wordsFile;
+        reload();
+    }
+
+    static ContentFilterStage fromProperties() {
+        List<String> palabras = new ArrayList<>();
+        for (String w : System.getProperty("chat.filter.words", "").split(",")) {
+            if (!w.trim().isEmpty()) {
+                palabras.add(w.trim());
+            }
+        }
+        String fichero = System.getProperty("chat.filter.wordsFile");
+        ContentFilterStage stage = new ContentFilterStage(palabras, fichero != null ? Paths.get(fichero) : null);
+        long reloadMs = Long.getLong("chat.filter.reloadMs", 5000);
+        if (stage.wordsFile != null && reloadMs > 0) {
+            stage.watch(reloadMs);
+        }
+        return stage;
+    }
+
+    @Override
+    public String name() {
+        return "content-filter";
+    }
+
+    /** Relee las palabras y sustituye el autómata. Si el fichero no se puede leer se mantiene el anterior. */
+    synchronized void reload() {
+        List<String> palabras = new ArrayList<>(inlineWords);
+        if (wordsFile != null) {
+            try {
+                fileStamp = Files.exists(wordsFile) ? Files.getLastModifiedTime(wordsFile).toMillis() : 0;
+                if (fileStamp != 0) {
+                    for (String linea : Files.readAllLines(wordsFile, StandardCharsets.UTF_8)) {
+                        String w = linea.trim();
+                        if (!w.isEmpty() && !w.startsWith("#")) {
+                            palabras.add(w);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "No se pudo leer " + wordsFile + "; se mantiene el filtro anterior", e);
+                if (automaton != null) {
+                    return;
+                }
+            }
+        }
+        List<String> patrones = new ArrayList<>(palabras);
+        List<Integer> tipos = new ArrayList<>();
+        for (int i = 0; i < palabras.size(); i++) {
+            tipos.add(BANNED);
+        }
+        for (String prefijo : LINK_PREFIXES) {
+            patrones.add(prefijo);
+            tipos.add(LINK);
+        }
+        patrones.add("@");
+        tipos.add(MENTION);
+        automaton = AhoCorasick.build(patrones, tipos);
+        logger.info("Filtro de contenido: " + palabras.size() + " palabras prohibidas");
+    }
+
+    // Comprueba la fecha del fichero en la rueda común; la reconstrucción va a otro hilo
+    private void watch(long reloadMs) {
+        TimerWheel.shared().schedule(() -> {
+            ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    long stamp = Files.exists(wordsFile) ? Files.getLastModifiedTime(wordsFile).toMillis() : 0;
+                    if (stamp != fileStamp) {
+                        reload();
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "No se pudo consultar " + wordsFile, e);
+                }
+            });
+            watch(reloadMs);
+        }, reloadMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Verdict apply(Context ctx) {
+        String texto = ctx.mensaje.getContenido();
+        if (texto == null || texto.isEmpty()) {
+            return Verdict.PASS;
+        }
+        Scan scan = new Scan(texto, ctx);
+        automaton.scan(texto, scan);
+        if (scan.masked == null) {
+            return Verdict.PASS;
+        }
+        ctx.mensaje.setContenido(new String(scan.masked));
+        return Verdict.MODIFIED;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c);
+    }
+
+    // Estado de un recorrido: copia enmascarada (solo si hace falta) y fin del último enlace
+    private static final class Scan implements AhoCorasick.Listener {
+        private final String texto;
+        private final Context ctx;
+        char[] masked;
+        private int linkEnd;
+
+        Scan(String texto, Context ctx) {
+            this.texto = texto;
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void onMatch(int pattern, int kind, int start, int end) {
+            boolean inicioDePalabra = start == 0 || !isWordChar(texto.charAt(start - 1));
+            switch (kind) {
+                case BANNED:
+                    if (inicioDePalabra && (end == texto.length() || !isWordChar(texto.charAt(end)))) {
+                        if (masked == null) {
+                            masked = texto.toCharArray();
+                        }
+                        Arrays.fill(masked, start, end, '*');
+                    }
+                    break;
+                case LINK:
+                    // "https://www.x" también contiene "www.": solo cuenta el primero
+                    if (start >= linkEnd && inicioDePalabra) {
+                        int fin = end;
+                        while (fin < texto.length() && !Character.isWhitespace(texto.charAt(fin))) {
+                            fin++;
+                        }
+                        linkEnd = fin;
+                        ctx.links.add(texto.substring(start, fin));
+                    }
+                    break;
+                case MENTION:
+                    if (start >= linkEnd && inicioDePalabra) {
+                        int fin = end;
+                        while (fin < texto.length() && (isWordChar(texto.charAt(fin)) || texto.charAt(fin) == '_'
+                                || texto.charAt(fin) == '-' || texto.charAt(fin) == '.')) {
+                            fin++;
+                        }
+                        while (fin > end && texto.charAt(fin - 1) == '.') {
+                            fin--;
+                        }
+                        if (fin > end) {
+                            ctx.mentions.add(texto.substring(end, fin));
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Responde a las sondas de descubrimiento en LAN ({@code DISCOVER_CHAT_SERVER}) que llegan por
+ * multicast al grupo {@code chat.discovery.group} o por broadcast al puerto {@code chat.discovery.port}.
+ *
+ * <p>La respuesta es {@code CHAT_SERVER:host:puerto:nodo:sesiones:carga}, donde la carga es la media
+ * de carga del sistema por procesador en milésimas ({@code -1} si no se conoce). Los clientes antiguos
+ * solo leen los dos primeros campos. Se codifica de antemano y se regenera en la
+ * {@link TimerWheel#shared() rueda común} cada {@code chat.discovery.refreshMs} si ha cambiado, así que
+ * contestar una sonda es copiar un buffer: ni resolver el nombre local ni formatear texto.
+ */
+final class DiscoveryResponder implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(DiscoveryResponder.class.getName());
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("chat.discovery.enabled", "true"));
+    static final int PORT = Integer.getInteger("chat.discovery.port", 9090);
+    static final String GROUP = System.getProperty("chat.discovery.group", "239.255.90.90");
+    static final long REFRESH_MS = Math.max(100, Long.getLong("chat.discovery.refreshMs", 1000));
+
+    private static final byte[] PROBE = "DISCOVER_CHAT_SERVER".getBytes(StandardCharsets.US_ASCII);
+
+    private final String bindHost;
+    private final int wsPort;
+    private final String nodeId;
+    private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    private final Thread worker;
+    private volatile DatagramChannel channel;
+    private volatile boolean closed;
+    // Respuesta ya codificada (solo lectura); se sustituye entera al cambiar
+    private volatile ByteBuffer reply;
+    private String host;
+    private int lastSessions = -1;
+    private int lastLoad = Integer.MIN_VALUE;
+
+    private DiscoveryResponder(String bindHost, int wsPort, String nodeId) {
+        this.bindHost = bindHost;
+        this.wsPort = wsPort;
+        this.nodeId = nodeId.replace(':', '_');
+        this.worker = new Thread(this::run, "chat-discovery");
+        worker.setDaemon(true);
+    }
+
+    /**
+     * Arranca el responder en su propio hilo.
+     *
+     * @param bindHost host en el que escucha el servidor WebSocket; si no es {@code 0.0.0.0} se anuncia tal cual
+     * @return el responder, o {@code null} si {@code chat.discovery.enabled=false}
+     */
+    static DiscoveryResponder start(String bindHost, int wsPort, String nodeId) {
+        if (!ENABLED) {
+            return null;
+        }
+        DiscoveryResponder responder = new DiscoveryResponder(bindHost, wsPort, nodeId);
+        responder.worker.start();
+        return responder;
+    }
+
+    private void run() {
+        // Una sola vez y en este hilo: getLocalHost() puede tardar si hay que preguntar al DNS
+        host = advertisedHost();
+        refresh();
+        try (DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            channel = ch;
+            // Varios nodos en la misma máquina comparten el puerto y reciben todos la sonda
+            ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            ch.bind(new InetSocketAddress(PORT));
+            int grupos = joinGroup(ch);
+            logger.info("Descubrimiento en UDP/" + PORT + (grupos > 0
+                    ? " (multicast " + GROUP + " en " + grupos + " interfaces y broadcast)"
+                    : " (solo broadcast)") + ", anunciando " + host + ":" + wsPort);
+            if (closed) {
+                return;
+            }
+            ByteBuffer in = ByteBuffer.allocate(256);
+            while (!closed) {
+                in.clear();
+                SocketAddress from = ch.receive(in);
+                in.flip();
+                if (from != null && isProbe(in)) {
+                    try {
+                        ch.send(reply.duplicate(), from);
+                    } catch (ClosedChannelException e) {
+                        throw e;
+                    } catch (IOException e) {
+                        // Un destino inalcanzable no detiene el responder
+                        logger.log(Level.FINE, "No se pudo responder a " + from, e);
+                    }
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // close(): fin normal
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Responder de descubrimiento detenido", e);
+        }
+    }
+
+    // Se une al grupo en cada interfaz activa con multicast; las que fallan se ignoran
+    private int joinGroup(DatagramChannel ch) {
+        int grupos = 0;
+        try {
+            InetAddress group = InetAddress.getByName(GROUP);
+            for (NetworkInterface nif : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                try {
+                    if (nif.isUp() && nif.supportsMulticast() && nif.inetAddresses().anyMatch(a -> a.getAddress().length == 4)) {
+                        ch.join(group, nif);
+                        grupos++;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    logger.log(Level.FINE, "No se pudo unir " + nif.getName() + " al grupo " + GROUP, e);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Grupo de descubrimiento inválido: " + GROUP, e);
+        }
+        return grupos;
+    }
+
+    // Compara sin crear un String: mayúsculas indistintas y espacios alrededor ignorados
+    private static boolean isProbe(ByteBuffer in) {
+        int start = in.position();
+        int end = in.limit();
+        while (start < end && in.get(start) <= ' ') {
+            start++;
+        }
+        while (end > start && in.get(end - 1) <= ' ') {
+            end--;
+        }
+        if (end - start != PROBE.length) {
+            return false;
+        }
+        for (int i = 0; i < PROBE.length; i++) {
+            char c = (char) (in.get(start + i) & 0xFF);
+            if (Character.toUpperCase(c) != PROBE[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String advertisedHost() {
+        String configured = System.getProperty("chat.discovery.host");
+        if (configured != null && !configured.trim().isEmpty()) {
+            return configured.trim();
+        }
+        if (bindHost != null && !bindHost.isEmpty() && !"0.0.0.0".equals(bindHost)) {
+            return bindHost;
+        }
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+
+    // En el hilo de la rueda: se vuelve a programar mientras el responder siga abierto
+    private void refresh() {
+        if (closed) {
+            return;
+        }
+        int sessions = ChatEndpoint.activeSessions();
+        int load = load();
+        if (sessions != lastSessions || load != lastLoad) {
+            lastSessions = sessions;
+            lastLoad = load;
+            String texto = "CHAT_SERVER:" + host + ":" + wsPort + ":" + nodeId + ":" + sessions + ":" + load;
+            reply = ByteBuffer.wrap(texto.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+        TimerWheel.shared().schedule(this::refresh, REFRESH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Media de carga del último minuto por procesador, en milésimas (-1 si el sistema no la da)
+    private int load() {
+        double media = os.getSystemLoadAverage();
+        if (media < 0) {
+            return -1;
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.round(media * 1000 / os.getAvailableProcessors()));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        DatagramChannel ch = channel;
+        if (ch != null) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                // nada más que hacer
+            }
+        }
+    }
+}
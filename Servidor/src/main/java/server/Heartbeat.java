@@ -0,0 +1,91 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latidos del servidor: cada {@code chat.heartbeat.intervalMs} se envía un ping a cada conexión y
+ * se descarta la que lleva más de {@code chat.heartbeat.timeoutMs} sin enviar nada (ni pong ni
+ * mensajes). Así una conexión TCP medio abierta sale del registro y de sus salas antes de seguir
+ * costando trabajo en cada difusión, en lugar de esperar a que falle una escritura.
+ *
+ * <p>Todas las comprobaciones van por la {@link TimerWheel#shared() rueda común}, no por una tarea programada por
+ * sesión. El ping lleva el instante de envío para medir el tiempo de ida y vuelta con el pong. El descarte
+ * (baja, avisos de presencia, cierre de la sesión) sale de la rueda a un hilo propio para no retrasar
+ * al resto de temporizadores que comparten su hilo.
+ */
+final class Heartbeat {
+    private static final Logger logger = Logger.getLogger(Heartbeat.class.getName());
+
+    static final long INTERVAL_MS = Math.max(0, Long.getLong("chat.heartbeat.intervalMs", 30000));
+    static final long TIMEOUT_MS = Long.getLong("chat.heartbeat.timeoutMs", INTERVAL_MS * 5 / 2);
+    static final boolean ENABLED = INTERVAL_MS > 0;
+
+    private static final ExecutorService EVICTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-heartbeat-evict");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Heartbeat() {
+    }
+
+    /**
+     * Empieza a vigilar una conexión recién abierta. La primera comprobación se reparte al azar en
+     * medio intervalo para que las conexiones de una avalancha no hagan ping todas a la vez.
+     *
+     * @param evict qué hacer con una conexión muerta (sacarla del registro y de las salas)
+     */
+    static void watch(Connection connection, Consumer<Connection> evict) {
+        if (!ENABLED) {
+            return;
+        }
+        long first = INTERVAL_MS / 2 + ThreadLocalRandom.current().nextLong(INTERVAL_MS / 2 + 1);
+        TimerWheel.shared().schedule(() -> check(connection, evict), first, TimeUnit.MILLISECONDS);
+    }
+
+    // En el hilo de la rueda: nada bloqueante; el descarte se delega a EVICTOR
+    private static void check(Connection connection, Consumer<Connection> evict) {
+        if (connection.isClosed()) {
+            return;
+        }
+        long silentMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connection.lastSeen);
+        if (silentMs > TIMEOUT_MS) {
+            ChatMetrics.REAPED.increment();
+            logger.info("Cerrando sesión " + connection.id() + ": " + silentMs + " ms sin respuesta");
+            EVICTOR.execute(() -> {
+                try {
+                    evict.accept(connection);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error al descartar la sesión " + connection.id(), e);
+                }
+            });
+            return;
+        }
+        try {
+            ByteBuffer payload = ByteBuffer.allocate(Long.BYTES).putLong(0, System.nanoTime());
+            connection.session.getAsyncRemote().sendPing(payload);
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.FINE, "No se pudo enviar ping a " + connection.id(), e);
+        }
+        TimerWheel.shared().schedule(() -> check(connection, evict), INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Pong recibido: cuenta como actividad y, si es respuesta a nuestro ping, da el tiempo de ida y vuelta. */
+    static void pong(Connection connection, ByteBuffer payload) {
+        connection.touch();
+        if (payload != null && payload.remaining() == Long.BYTES) {
+            long rtt = System.nanoTime() - payload.getLong(payload.position());
+            if (rtt >= 0 && rtt < TimeUnit.MINUTES.toNanos(10)) {
+                ChatMetrics.PING_RTT.record(rtt);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package server;
+
+import protocol.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cadena de etapas por la que pasa cada mensaje de chat (de sala o privado) antes de difundirse.
+ * Por defecto: {@link ContentFilterStage} (palabras prohibidas, enlaces y menciones en una sola
+ * pasada) y {@link LinkLimitStage}. Cada etapa lleva su histograma de tiempos y sus contadores de
+ * mensajes modificados y rechazados, que se publican en {@code /metrics}.
+ */
+final class InboundPipeline {
+    private static final Logger logger = Logger.getLogger(InboundPipeline.class.getName());
+
+    /** Etapa con sus métricas. */
+    static final class Stage {
+        final InboundStage stage;
+        final LatencyHistogram time = new LatencyHistogram();
+        final LongAdder modified = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        Stage(InboundStage stage) {
+            this.stage = stage;
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+
+    InboundPipeline(List<InboundStage> etapas) {
+        for (InboundStage etapa : etapas) {
+            stages.add(new Stage(etapa));
+        }
+    }
+
+    static InboundPipeline defaults() {
+        return new InboundPipeline(List.of(ContentFilterStage.fromProperties(), LinkLimitStage.fromProperties()));
+    }
+
+    /**
+     * Pasa el mensaje por todas las etapas, que pueden modificarlo en el sitio.
+     *
+     * @return {@code null} si se acepta, o el motivo del rechazo
+     */
+    String process(Message mensaje, Connection remitente) {
+        InboundStage.Context ctx = new InboundStage.Context(mensaje, remitente);
+        for (Stage s : stages) {
+            long start = System.nanoTime();
+            InboundStage.Verdict verdict;
+            try {
+                verdict = s.stage.apply(ctx);
+            } catch (RuntimeException e) {
+                // Un fallo de una etapa no tumba el mensaje: se registra y se sigue
+                logger.log(Level.WARNING, "Error en la etapa " + s.stage.name(), e);
+                verdict = InboundStage.Verdict.PASS;
+            } finally {
+                s.time.record(System.nanoTime() - start);
+            }
+            if (verdict == InboundStage.Verdict.MODIFIED) {
+                s.modified.increment();
+            } else if (verdict == InboundStage.Verdict.REJECT) {
+                s.rejected.increment();
+                return ctx.reason != null ? ctx.reason : "Mensaje rechazado";
+            }
+        }
+        return null;
+    }
+
+    List<Stage> stages() {
+        return stages;
+    }
+}
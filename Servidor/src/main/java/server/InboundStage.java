@@ -0,0 +1,40 @@
+package server;
+
+import protocol.Message;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Etapa del procesado de mensajes entrantes ({@link InboundPipeline}). Cada etapa puede dejar pasar
+ * el mensaje, modificarlo (p. ej. enmascarar palabras) o rechazarlo con un motivo que se devuelve
+ * al remitente como {@code ERROR}. Se ejecutan en el hilo que procesa el mensaje y sin candados:
+ * una etapa no debe bloquear.
+ */
+interface InboundStage {
+
+    enum Verdict { PASS, MODIFIED, REJECT }
+
+    /** Nombre corto para métricas y registro (p. ej. {@code content-filter}). */
+    String name();
+
+    Verdict apply(Context ctx);
+
+    /** Mensaje en curso y lo que las etapas anteriores han extraído de él. */
+    final class Context {
+        final Message mensaje;
+        final Connection remitente;
+        final List<String> links = new ArrayList<>(0);
+        final List<String> mentions = new ArrayList<>(0);
+        String reason;
+
+        Context(Message mensaje, Connection remitente) {
+            this.mensaje = mensaje;
+            this.remitente = remitente;
+        }
+
+        Verdict reject(String motivo) {
+            this.reason = motivo;
+            return Verdict.REJECT;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import protocol.LogLinearBuckets;
+
+/**
+ * Histograma de latencias en nanosegundos, sin candados ni reservas de memoria al registrar.
+ *
+ * <p>Cubetas log-lineales ({@link LogLinearBuckets}): cada potencia de dos se divide en 8 sub-cubetas,
+ * así que el error relativo de un percentil es como mucho del 12,5 %. Con 488 cubetas se cubre todo el
+ * rango de {@code long}; registrar es calcular un índice e incrementar un contador atómico.
+ */
+final class LatencyHistogram {
+    private static final LogLinearBuckets B = new LogLinearBuckets(3);
+    private static final int BUCKETS = B.buckets();
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    void record(long nanos) {
+        long v = Math.max(0, nanos);
+        counts.incrementAndGet(B.index(v));
+        count.increment();
+        sumNanos.add(v);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Percentil aproximado ({@code q} entre 0 y 1) en nanosegundos: el punto medio de la cubeta que
+     * lo contiene, o 0 si aún no hay datos. Lectura no atómica: válida para monitorización.
+     */
+    long quantile(double q) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long low = B.lowerBound(i);
+                long high = i + 1 < BUCKETS ? B.lowerBound(i + 1) : Long.MAX_VALUE;
+                return low + (high - low) / 2;
+            }
+        }
+        return B.lowerBound(BUCKETS - 1);
+    }
+}
@@ -0,0 +1,37 @@
+package server;
+
+/**
+ * Segunda etapa de {@link InboundPipeline}: rechaza los mensajes con más enlaces o menciones de los
+ * permitidos ({@code chat.filter.maxLinks}, {@code chat.filter.maxMentions}; negativo = sin límite),
+ * a partir de lo que extrajo {@link ContentFilterStage}. Frena el spam de enlaces y las menciones masivas.
+ */
+final class LinkLimitStage implements InboundStage {
+    private final int maxLinks;
+    private final int maxMentions;
+
+    LinkLimitStage(int maxLinks, int maxMentions) {
+        this.maxLinks = maxLinks;
+        this.maxMentions = maxMentions;
+    }
+
+    static LinkLimitStage fromProperties() {
+        return new LinkLimitStage(Integer.getInteger("chat.filter.maxLinks", 5),
+                Integer.getInteger("chat.filter.maxMentions", 10));
+    }
+
+    @Override
+    public String name() {
+        return "link-limit";
+    }
+
+    @Override
+    public Verdict apply(Context ctx) {
+        if (maxLinks >= 0 && ctx.links.size() > maxLinks) {
+            return ctx.reject("Demasiados enlaces en el mensaje (máximo " + maxLinks + ")");
+        }
+        if (maxMentions >= 0 && ctx.mentions.size() > maxMentions) {
+            return ctx.reject("Demasiadas menciones en el mensaje (máximo " + maxMentions + ")");
+        }
+        return Verdict.PASS;
+    }
+}
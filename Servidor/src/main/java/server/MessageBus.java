@@ -0,0 +1,86 @@
+package server;
+
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Bus de mensajes entre nodos del clúster. {@link ChatEndpoint} publica en él lo que difunde a sus
+ * sesiones locales y recibe por él lo que difunden los demás nodos para entregarlo a las suyas.
+ *
+ * <p>Solo se publican mensajes originados en el nodo local y nunca se reenvía lo recibido, así que
+ * en una malla completa cada mensaje cruza cada enlace una vez. Además todo mensaje viaja con el
+ * identificador del nodo de origen y se descarta si vuelve a él.
+ */
+interface MessageBus extends AutoCloseable {
+
+    /** Receptor de lo que llega de otros nodos. */
+    interface Listener {
+        /** Mensaje (JSON) difundido por otro nodo. */
+        void onRemoteMessage(String nodeId, String mensajeJson);
+
+        /** Se perdió la conexión con un nodo: su presencia ya no es válida. */
+        void onNodeDown(String nodeId);
+
+        /**
+         * JSON que se envía primero a cada nodo al conectar (estado de presencia local).
+         * {@code descartar} vacía lo pendiente para ese nodo y se ejecuta de forma atómica con la
+         * instantánea: ningún delta queda a la vez dentro de ella y en la cola.
+         */
+        String presenceSync(Runnable descartar);
+    }
+
+    String nodeId();
+
+    void start(Listener listener);
+
+    /** Publica un mensaje local para el resto de nodos. No debe bloquear. */
+    void publish(String mensajeJson);
+
+    /** Mensajes que no se pudieron encolar para algún nodo (cola del enlace llena). */
+    long droppedCount();
+
+    @Override
+    void close();
+
+    /**
+     * Construye el bus según propiedades del sistema: con {@code chat.cluster.port} se usa
+     * {@link TcpMessageBus} (pares en {@code chat.cluster.peers=host:puerto,...}); sin ella el nodo va solo.
+     */
+    static MessageBus fromSystemProperties() {
+        String nodeId = System.getProperty("chat.node.id");
+        if (nodeId == null || nodeId.trim().isEmpty()) {
+            nodeId = UUID.randomUUID().toString().substring(0, 8);
+        }
+        Integer clusterPort = Integer.getInteger("chat.cluster.port");
+        if (clusterPort == null) {
+            return new Standalone(nodeId);
+        }
+        return new TcpMessageBus(nodeId, clusterPort, System.getProperty("chat.cluster.peers", ""));
+    }
+
+    /** Nodo único: no hay a quién publicar. */
+    final class Standalone implements MessageBus {
+        private final String nodeId;
+
+        Standalone(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        @Override
+        public String nodeId() { return nodeId; }
+
+        @Override
+        public void start(Listener listener) {
+            Logger.getLogger(MessageBus.class.getName()).info("Nodo " + nodeId + " sin clúster");
+        }
+
+        @Override
+        public void publish(String mensajeJson) { }
+
+        @Override
+        public long droppedCount() { return 0; }
+
+        @Override
+        public void close() { }
+    }
+}
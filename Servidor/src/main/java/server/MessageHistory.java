@@ -0,0 +1,91 @@
+package server;
+
+import protocol.Message;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Predicate;
+
+/**
+ * Historial en memoria de tamaño fijo: un anillo preasignado de los últimos N mensajes
+ * indexado por número de secuencia. Escribir y leer no toman candados; un lector que
+ * encuentre un hueco ya sobrescrito simplemente se lo salta.
+ */
+class MessageHistory {
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chat.history.size", 1024);
+
+    private final AtomicReferenceArray<Message> slots;
+    private final int mask;
+    private final AtomicLong lastSeq = new AtomicLong();
+
+    MessageHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    MessageHistory(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1; // potencia de 2 >= capacity
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /** Asigna al mensaje el siguiente número de secuencia sin guardarlo. */
+    long stamp(Message mensaje) {
+        long seq = lastSeq.incrementAndGet();
+        mensaje.setSeq(seq);
+        return seq;
+    }
+
+    /** Asigna secuencia y guarda el mensaje, sobrescribiendo el más antiguo si el anillo está lleno. */
+    long append(Message mensaje) {
+        long seq = stamp(mensaje);
+        slots.set((int) (seq & mask), mensaje);
+        return seq;
+    }
+
+    /**
+     * Mensajes guardados con secuencia mayor que {@code sinceSeq}, en orden, que cumplan el filtro.
+     * Como máximo devuelve {@code limit} mensajes (los más antiguos primero).
+     */
+    List<Message> since(long sinceSeq, Predicate<Message> filter, int limit) {
+        long last = lastSeq.get();
+        long from = Math.max(sinceSeq + 1, last - slots.length() + 1);
+        List<Message> result = new ArrayList<>();
+        for (long seq = Math.max(1, from); seq <= last && result.size() < limit; seq++) {
+            Message m = slots.get((int) (seq & mask));
+            // El hueco puede contener un mensaje más nuevo (ya dio la vuelta) o uno no guardado
+            if (m != null && m.getSeq() != null && m.getSeq() == seq && filter.test(m)) {
+                result.add(m);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Vuelve a colocar un mensaje que ya tenía secuencia (p. ej. leído del registro persistente
+     * al arrancar). La numeración continúa a partir del mayor restaurado.
+     */
+    void restore(Message mensaje) {
+        long seq = mensaje.getSeq();
+        slots.set((int) (seq & mask), mensaje);
+        lastSeq.accumulateAndGet(seq, Math::max);
+    }
+
+    /** Reanuda la numeración tras un reinicio (nunca retrocede). */
+    void resumeFrom(long seq) {
+        lastSeq.accumulateAndGet(seq, Math::max);
+    }
+
+    long lastSeq() {
+        return lastSeq.get();
+    }
+
+    /** Secuencia más antigua que el anillo todavía puede contener. */
+    long firstSeq() {
+        return Math.max(1, lastSeq.get() - slots.length() + 1);
+    }
+
+    int capacity() {
+        return slots.length();
+    }
+}
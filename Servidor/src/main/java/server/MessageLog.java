@@ -0,0 +1,568 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import protocol.Message;
+
+/**
+ * Registro persistente de mensajes de chat, de solo anexado y dividido en segmentos.
+ *
+ * <p>Cada segmento es un fichero {@code <seqBase>.log} escrito a través de un {@link MappedByteBuffer}
+ * con registros binarios compactos, más un índice disperso {@code <seqBase>.idx} con entradas
+ * (secuencia, marca de tiempo, posición) cada {@code chat.log.indexInterval} registros.
+ * La difusión solo encola el mensaje; un hilo escritor dedicado serializa, escribe y hace fsync
+ * según la política configurada, así la latencia del disco nunca llega al camino de broadcast.
+ *
+ * <p>Formato de registro: {@code int longitud | int crc32 | long seq | long epochMillis | tipo | usuario | sala | contenido},
+ * donde cada cadena es {@code unsigned short longitud (0xFFFF = null) | bytes UTF-8}.
+ * Una longitud 0 marca el final de los datos válidos del segmento.
+ */
+class MessageLog implements AutoCloseable {
+
+    /** Cuándo forzar los datos a disco. */
+    enum FsyncPolicy {
+        /** Nunca explícitamente; lo decide el sistema operativo. */
+        NEVER,
+        /** Como mucho una vez cada {@code chat.log.fsyncMs} milisegundos (group commit por tiempo). */
+        INTERVAL,
+        /** Tras cada lote que vacía el escritor (group commit por lote). */
+        ALWAYS
+    }
+
+    private static final Logger logger = Logger.getLogger(MessageLog.class.getName());
+    private static final int HEADER = 8;           // longitud + crc
+    private static final int FIXED_PAYLOAD = 16;   // seq + epochMillis
+    private static final int INDEX_ENTRY = 20;     // seq + epochMillis + posición
+    private static final int NULL_STRING = 0xFFFF;
+    private static final int BATCH = 1024;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int indexInterval;
+    private final int maxSegments;
+    private final FsyncPolicy fsync;
+    private final long fsyncIntervalNanos;
+
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<Message> pending;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final Thread writer;
+    private final CRC32 crc = new CRC32(); // solo lo usa el hilo escritor
+    private volatile boolean running = true;
+    private volatile long lastSeq;
+    private Segment active;
+    private long lastForce = System.nanoTime();
+    private boolean dirty;
+
+    MessageLog(Path dir, int segmentBytes, int indexInterval, int maxSegments,
+               FsyncPolicy fsync, long fsyncIntervalMs, int queueCapacity) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = Math.max(1, indexInterval);
+        this.maxSegments = Math.max(1, maxSegments);
+        this.fsync = fsync;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMs);
+        this.pending = new ArrayBlockingQueue<>(queueCapacity);
+        Files.createDirectories(dir);
+        recover();
+        this.writer = new Thread(this::writeLoop, "chat-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "chat-log-shutdown"));
+    }
+
+    /**
+     * Abre el registro con la configuración de propiedades del sistema, o devuelve {@code null}
+     * si está desactivado ({@code chat.log.enabled=false}) o no se puede abrir.
+     */
+    static MessageLog openDefault() {
+        if (!Boolean.parseBoolean(System.getProperty("chat.log.enabled", "true"))) {
+            return null;
+        }
+        Path dir = Paths.get(System.getProperty("chat.log.dir", "chat-log"));
+        FsyncPolicy policy;
+        try {
+            policy = FsyncPolicy.valueOf(System.getProperty("chat.log.fsync", "INTERVAL").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warning("Política de fsync desconocida, usando INTERVAL");
+            policy = FsyncPolicy.INTERVAL;
+        }
+        try {
+            return new MessageLog(dir,
+                    Integer.getInteger("chat.log.segmentBytes", 16 * 1024 * 1024),
+                    Integer.getInteger("chat.log.indexInterval", 64),
+                    Integer.getInteger("chat.log.maxSegments", 16),
+                    policy,
+                    Long.getLong("chat.log.fsyncMs", 200),
+                    Integer.getInteger("chat.log.queue", 8192));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "No se pudo abrir el registro de mensajes en " + dir.toAbsolutePath()
+                    + "; se continúa sin persistencia", e);
+            return null;
+        }
+    }
+
+    /** Encola el mensaje para escribirlo. Nunca bloquea; si la cola está llena lo cuenta como descartado. */
+    void append(Message mensaje) {
+        if (!running || !pending.offer(mensaje)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** Última secuencia escrita (o recuperada al arrancar). */
+    long lastSeq() {
+        return lastSeq;
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    long writtenCount() {
+        return written.get();
+    }
+
+    /**
+     * Lee, en orden, hasta {@code limit} mensajes con secuencia mayor que {@code sinceSeq} que
+     * cumplan el filtro. El índice disperso sitúa la lectura cerca del primer registro buscado.
+     */
+    List<Message> read(long sinceSeq, int limit, Predicate<Message> filter) {
+        List<Message> result = new ArrayList<>();
+        Map.Entry<Long, Segment> first = segments.floorEntry(sinceSeq + 1);
+        Long from = first != null ? first.getKey() : segments.isEmpty() ? null : segments.firstKey();
+        if (from == null) {
+            return result;
+        }
+        for (Segment seg : segments.tailMap(from, true).values()) {
+            if (seg.lastSeq <= sinceSeq) {
+                continue;
+            }
+            ByteBuffer view = seg.view();
+            int pos = seg.positionForSeq(sinceSeq + 1);
+            int end = seg.end;
+            while (pos < end && result.size() < limit) {
+                int len = view.getInt(pos);
+                if (len <= 0) {
+                    break;
+                }
+                long seq = view.getLong(pos + HEADER);
+                if (seq > sinceSeq) {
+                    Message m = decode(view, pos);
+                    if (filter.test(m)) {
+                        result.add(m);
+                    }
+                }
+                pos += 4 + len;
+            }
+            if (result.size() >= limit) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        // Sin interrupt(): interrumpir al escritor cerraría los FileChannel en mitad de una escritura.
+        // El bucle termina solo tras vaciar lo pendiente (poll con timeout).
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // ---------------------------------------------------------------- escritura
+
+    private void writeLoop() {
+        List<Message> batch = new ArrayList<>(BATCH);
+        long waitMs = fsync == FsyncPolicy.INTERVAL ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(fsyncIntervalNanos)) : 1000;
+        while (running || !pending.isEmpty()) {
+            try {
+                Message first = pending.poll(waitMs, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, BATCH - 1);
+                    // Varios hilos difunden a la vez: se ordena el lote para que el segmento quede por secuencia
+                    batch.sort((a, b) -> Long.compare(a.getSeq(), b.getSeq()));
+                    for (Message m : batch) {
+                        write(m);
+                    }
+                    batch.clear();
+                }
+                maybeForce(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Error escribiendo el registro de mensajes", e);
+                batch.clear();
+            }
+        }
+        try {
+            maybeForce(true);
+            if (active != null) {
+                active.closeFiles();
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error al cerrar el registro de mensajes", e);
+        }
+    }
+
+    private void write(Message m) throws IOException {
+        if (m.getSeq() == null) {
+            return;
+        }
+        byte[] tipo = bytes(m.getTipo());
+        byte[] usuario = bytes(m.getUsuario());
+        byte[] sala = bytes(m.getSala());
+        byte[] contenido = bytes(m.getContenido());
+        int payload = FIXED_PAYLOAD + 8 + len(tipo) + len(usuario) + len(sala) + len(contenido);
+        int size = HEADER + payload;
+        if (size + 4 > segmentBytes) {
+            logger.warning("Mensaje " + m.getSeq() + " demasiado grande para el registro; se omite");
+            return;
+        }
+        long seq = m.getSeq();
+        if (active == null || active.end + size + 4 > segmentBytes) {
+            roll(seq);
+        }
+        long millis = m.getHora() != 0 ? m.getHora() : System.currentTimeMillis();
+        MappedByteBuffer map = active.map;
+        int start = active.end;
+        int p = start + HEADER;
+        map.putLong(p, seq);
+        map.putLong(p + 8, millis);
+        p += FIXED_PAYLOAD;
+        p = putString(map, p, tipo);
+        p = putString(map, p, usuario);
+        p = putString(map, p, sala);
+        p = putString(map, p, contenido);
+        crc.reset();
+        crc.update(map.duplicate().position(start + HEADER).limit(p));
+        map.putInt(start + 4, (int) crc.getValue());
+        // La longitud se escribe al final: un lector nunca ve un registro a medias
+        map.putInt(start, payload + 4);
+        if (active.recordsSinceIndex == 0 || active.recordsSinceIndex >= indexInterval) {
+            active.addIndexEntry(seq, millis, start, true);
+            active.recordsSinceIndex = 0;
+        }
+        active.recordsSinceIndex++;
+        active.lastSeq = seq;
+        active.end = p;
+        lastSeq = Math.max(lastSeq, seq);
+        written.incrementAndGet();
+        dirty = true;
+    }
+
+    private void roll(long baseSeq) throws IOException {
+        if (active != null) {
+            active.force();
+            active.closeFiles();
+        }
+        Segment seg = Segment.create(dir, baseSeq, segmentBytes);
+        segments.put(baseSeq, seg);
+        active = seg;
+        while (segments.size() > maxSegments) {
+            Map.Entry<Long, Segment> oldest = segments.pollFirstEntry();
+            oldest.getValue().delete();
+            logger.info("Segmento de registro eliminado por retención: " + oldest.getKey());
+        }
+    }
+
+    private void maybeForce(boolean always) throws IOException {
+        if (!dirty || active == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        boolean due = always
+                || fsync == FsyncPolicy.ALWAYS
+                || (fsync == FsyncPolicy.INTERVAL && now - lastForce >= fsyncIntervalNanos);
+        if (due) {
+            active.force();
+            lastForce = now;
+            dirty = false;
+        }
+    }
+
+    // ---------------------------------------------------------------- recuperación
+
+    // Reconstruye el estado leyendo los índices; solo se recorren los registros posteriores
+    // a la última entrada de índice de cada segmento para encontrar su final real.
+    private void recover() throws IOException {
+        List<Path> logs = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*.log")) {
+            ds.forEach(logs::add);
+        }
+        logs.sort(null);
+        for (int i = 0; i < logs.size(); i++) {
+            Path logPath = logs.get(i);
+            String name = logPath.getFileName().toString();
+            long base;
+            try {
+                base = Long.parseLong(name.substring(0, name.length() - 4));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            boolean last = i == logs.size() - 1;
+            Segment seg = Segment.open(dir, base, last ? segmentBytes : -1, last);
+            seg.recoverTail();
+            segments.put(base, seg);
+            lastSeq = Math.max(lastSeq, seg.lastSeq);
+            if (last) {
+                active = seg;
+                active.recordsSinceIndex = seg.recordsAfterLastIndex;
+            }
+        }
+        if (!segments.isEmpty()) {
+            logger.info(String.format("Registro de mensajes recuperado: %d segmentos, última secuencia %d",
+                    segments.size(), lastSeq));
+        }
+    }
+
+    // ---------------------------------------------------------------- codificación
+
+    private static Message decode(ByteBuffer view, int pos) {
+        int p = pos + HEADER;
+        long seq = view.getLong(p);
+        long millis = view.getLong(p + 8);
+        p += FIXED_PAYLOAD;
+        String[] campos = new String[4];
+        for (int i = 0; i < campos.length; i++) {
+            int len = view.getShort(p) & 0xFFFF;
+            p += 2;
+            if (len != NULL_STRING) {
+                byte[] b = new byte[len];
+                view.get(p, b);
+                campos[i] = new String(b, StandardCharsets.UTF_8);
+                p += len;
+            }
+        }
+        Message m = new Message(campos[1], campos[3], campos[0]);
+        m.setSala(campos[2]);
+        m.setSeq(seq);
+        m.setHora(millis);
+        return m;
+    }
+
+    private static byte[] bytes(String s) {
+        if (s == null) {
+            return null;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        return b.length >= NULL_STRING ? Arrays.copyOf(b, NULL_STRING - 1) : b;
+    }
+
+    private static int len(byte[] b) {
+        return b == null ? 0 : b.length;
+    }
+
+    private static int putString(ByteBuffer buf, int p, byte[] b) {
+        if (b == null) {
+            buf.putShort(p, (short) NULL_STRING);
+            return p + 2;
+        }
+        buf.putShort(p, (short) b.length);
+        buf.put(p + 2, b);
+        return p + 2 + b.length;
+    }
+
+    // ---------------------------------------------------------------- segmento
+
+    private static final class Segment {
+        final long baseSeq;
+        final Path logPath;
+        final Path idxPath;
+        FileChannel channel;
+        FileChannel idxChannel;
+        MappedByteBuffer map;
+        volatile int end;
+        volatile long lastSeq;
+        int recordsSinceIndex;
+        int recordsAfterLastIndex;
+
+        // Índice disperso en memoria; se amplía solo desde el hilo escritor
+        private long[] idxSeq = new long[64];
+        private int[] idxPos = new int[64];
+        private int idxCount;
+
+        private Segment(Path dir, long baseSeq) {
+            this.baseSeq = baseSeq;
+            String name = String.format("%020d", baseSeq);
+            this.logPath = dir.resolve(name + ".log");
+            this.idxPath = dir.resolve(name + ".idx");
+            this.lastSeq = baseSeq - 1;
+        }
+
+        static Segment create(Path dir, long baseSeq, int size) throws IOException {
+            Segment seg = new Segment(dir, baseSeq);
+            seg.openFiles(size, true);
+            return seg;
+        }
+
+        static Segment open(Path dir, long baseSeq, int size, boolean writable) throws IOException {
+            Segment seg = new Segment(dir, baseSeq);
+            seg.openFiles(size, writable);
+            seg.loadIndex();
+            return seg;
+        }
+
+        private void openFiles(int size, boolean writable) throws IOException {
+            if (writable) {
+                channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+                idxChannel = FileChannel.open(idxPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } else {
+                channel = FileChannel.open(logPath, StandardOpenOption.READ);
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+
+        private void loadIndex() throws IOException {
+            if (!Files.exists(idxPath)) {
+                return;
+            }
+            try (FileChannel ch = FileChannel.open(idxPath, StandardOpenOption.READ)) {
+                int n = (int) (ch.size() / INDEX_ENTRY);
+                ByteBuffer buf = ByteBuffer.allocate(n * INDEX_ENTRY);
+                while (buf.hasRemaining() && ch.read(buf) >= 0) {
+                    // leer todo
+                }
+                buf.flip();
+                for (int i = 0; i < n; i++) {
+                    addIndexEntry(buf.getLong(), buf.getLong(), buf.getInt(), false);
+                }
+            }
+        }
+
+        // Parte de la última entrada de índice y avanza hasta el primer registro vacío o corrupto
+        void recoverTail() {
+            int pos = 0;
+            synchronized (this) {
+                if (idxCount > 0) {
+                    pos = idxPos[idxCount - 1];
+                    lastSeq = idxSeq[idxCount - 1];
+                }
+            }
+            CRC32 check = new CRC32();
+            int records = 0;
+            int limit = map.capacity();
+            while (pos + HEADER <= limit) {
+                int len = map.getInt(pos);
+                if (len <= 4 || pos + 4 + len > limit) {
+                    break;
+                }
+                check.reset();
+                check.update(map.duplicate().position(pos + HEADER).limit(pos + 4 + len));
+                if ((int) check.getValue() != map.getInt(pos + 4)) {
+                    logger.warning("Registro corrupto en " + logPath + " posición " + pos + "; se trunca ahí");
+                    break;
+                }
+                lastSeq = map.getLong(pos + HEADER);
+                pos += 4 + len;
+                records++;
+            }
+            end = pos;
+            recordsAfterLastIndex = records;
+            if (!map.isReadOnly() && pos + 4 <= limit) {
+                map.putInt(pos, 0); // descarta una cola a medias
+            }
+        }
+
+        synchronized void addIndexEntry(long seq, long time, int pos, boolean persist) throws IOException {
+            if (idxCount == idxSeq.length) {
+                int n = idxCount * 2;
+                idxSeq = Arrays.copyOf(idxSeq, n);
+                idxPos = Arrays.copyOf(idxPos, n);
+            }
+            idxSeq[idxCount] = seq;
+            idxPos[idxCount] = pos;
+            if (persist && idxChannel != null) {
+                ByteBuffer e = ByteBuffer.allocate(INDEX_ENTRY).putLong(seq).putLong(time).putInt(pos);
+                e.flip();
+                idxChannel.write(e, (long) idxCount * INDEX_ENTRY);
+            }
+            idxCount++;
+        }
+
+        // Posición de la última entrada de índice con secuencia <= seq (0 si no hay)
+        synchronized int positionForSeq(long seq) {
+            int i = search(idxSeq, seq);
+            return i < 0 ? 0 : idxPos[i];
+        }
+
+        private int search(long[] keys, long key) {
+            int lo = 0;
+            int hi = idxCount - 1;
+            int found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] <= key) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        ByteBuffer view() {
+            return map.duplicate();
+        }
+
+        void force() throws IOException {
+            if (!map.isReadOnly()) {
+                map.force();
+            }
+            if (idxChannel != null) {
+                idxChannel.force(false);
+            }
+        }
+
+        // Tras rotar, el segmento queda solo para lectura; el mapeo sigue válido
+        void closeFiles() throws IOException {
+            if (idxChannel != null) {
+                idxChannel.close();
+                idxChannel = null;
+            }
+        }
+
+        void delete() {
+            try {
+                closeFiles();
+                channel.close();
+                Files.deleteIfExists(logPath);
+                Files.deleteIfExists(idxPath);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "No se pudo eliminar el segmento " + logPath, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package server;
+
+import java.nio.ByteBuffer;
+import protocol.BinaryMessageCodec;
+import protocol.Message;
+import protocol.MessageCodec;
+
+/**
+ * Mensaje listo para difundir a sesiones con formatos distintos. Cada formato se codifica como
+ * mucho una vez, y solo si alguna sesión lo necesita; todas las colas comparten el resultado.
+ */
+final class OutboundFrame {
+    private final Message mensaje;
+    private String text;
+    private ByteBuffer binary;
+
+    OutboundFrame(Message mensaje) {
+        this.mensaje = mensaje;
+    }
+
+    synchronized String text() {
+        if (text == null) {
+            text = MessageCodec.encode(mensaje);
+        }
+        return text;
+    }
+
+    /** Vista propia del buffer binario compartido: cada envío avanza su propia posición. */
+    ByteBuffer binary() {
+        ByteBuffer b;
+        synchronized (this) {
+            if (binary == null) {
+                binary = BinaryMessageCodec.encode(mensaje);
+            }
+            b = binary;
+        }
+        return b.duplicate();
+    }
+
+    Message message() {
+        return mensaje;
+    }
+}
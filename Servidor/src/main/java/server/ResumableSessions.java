@@ -0,0 +1,126 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sesiones reanudables. Al registrar su nombre, cada conexión recibe un token; si se cae, su nombre
+ * y sus salas quedan aparcados durante {@code chat.resume.graceMs} en lugar de anunciar la salida.
+ * Si en ese plazo una conexión nueva presenta el token ({@code RESUME}), recupera ambos sin que los
+ * demás vean una pareja DESCONEXION/CONEXION; si no, al vencer se anuncia la salida como siempre.
+ *
+ * <p>El token es de un solo uso: reanudar entrega uno nuevo. Los plazos van por la
+ * {@link TimerWheel#shared() rueda común}; el anuncio de salida al vencer (candado de presencia y
+ * difusión) se hace en un hilo aparte, como los descartes de {@link Heartbeat}. Lo aparcado no sobrevive a un reinicio del servidor: el
+ * cliente que presenta un token desconocido entra como con {@code SET_NAME}.
+ */
+final class ResumableSessions {
+    private static final Logger logger = Logger.getLogger(ResumableSessions.class.getName());
+
+    static final long GRACE_MS = Math.max(0, Long.getLong("chat.resume.graceMs", 30000));
+    static final boolean ENABLED = GRACE_MS > 0;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final ExecutorService EXPIRER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "chat-resume-expire");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Map<String, Parked> parked = new ConcurrentHashMap<>();
+
+    /** Nombre y salas de una conexión caída, a la espera de que vuelva. */
+    static final class Parked {
+        final String token;
+        final String name;
+        final Set<String> rooms;
+
+        Parked(String token, String name, Set<String> rooms) {
+            this.token = token;
+            this.name = name;
+            this.rooms = rooms;
+        }
+    }
+
+    /** Token nuevo para la conexión (sustituye al anterior, que deja de valer). */
+    String issue(Connection connection) {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        connection.resumeToken = token;
+        return token;
+    }
+
+    /**
+     * Aparca una conexión cerrada con nombre y token. Si nadie la reclama antes del plazo se llama a
+     * {@code expired} desde un hilo propio (nunca desde el de la rueda).
+     *
+     * @return {@code false} si no se puede aparcar (desactivado, sin nombre o sin token): hay que
+     *         anunciar la salida ya
+     */
+    boolean park(Connection connection, Set<String> rooms, Consumer<Parked> expired) {
+        String token = connection.resumeToken;
+        String name = connection.name();
+        if (!ENABLED || token == null || name == null) {
+            return false;
+        }
+        Parked p = new Parked(token, name, rooms);
+        parked.put(token, p);
+        TimerWheel.shared().schedule(() -> {
+            if (parked.remove(token, p)) {
+                EXPIRER.execute(() -> {
+                    try {
+                        expired.accept(p);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Error al anunciar la salida de " + p.name, e);
+                    }
+                });
+            }
+        }, GRACE_MS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Reclama lo aparcado con ese token, siempre que el nombre coincida.
+     *
+     * @return lo aparcado, o {@code null} si el token no existe, ya venció o es de otro nombre
+     */
+    Parked claim(String token, String name) {
+        if (token == null || name == null) {
+            return null;
+        }
+        Parked p = parked.get(token);
+        if (p == null || !p.name.equals(name) || !parked.remove(token, p)) {
+            return null;
+        }
+        return p;
+    }
+
+    /** Nombres aparcados: siguen en la presencia hasta que vuelven o vence su plazo. */
+    List<String> names() {
+        List<String> names = new ArrayList<>(parked.size());
+        for (Parked p : parked.values()) {
+            names.add(p.name);
+        }
+        return names;
+    }
+
+    int size() {
+        return parked.size();
+    }
+
+    void clear() {
+        parked.clear();
+    }
+}
@@ -0,0 +1,99 @@
+package server;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Índice concurrente sala -> miembros; el inverso (conexión -> salas) vive en cada
+ * {@link Connection}. La difusión de una sala solo recorre sus suscriptores; las salas
+ * vacías se eliminan en la misma operación atómica que saca al último miembro.
+ */
+class RoomRegistry {
+    static final String DEFAULT_ROOM = "general";
+    static final int MAX_ROOM_NAME = 32;
+
+    private final Map<String, Set<Connection>> rooms = new ConcurrentHashMap<>();
+
+    /** @return {@code true} si la conexión no estaba ya en la sala (y sigue abierta) */
+    boolean join(String room, Connection connection) {
+        // Primero el índice inverso: un leaveAll concurrente (cierre o descarte por latidos) o ve la
+        // sala en la copia y la quita, o ya marcó la conexión como cerrada y el join se deshace abajo
+        connection.rooms.add(room);
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (k, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = members.add(connection);
+            return members;
+        });
+        if (connection.isClosed()) {
+            leave(room, connection);
+            return false;
+        }
+        return added[0];
+    }
+
+    /** @return {@code true} si la conexión estaba en la sala */
+    boolean leave(String room, Connection connection) {
+        boolean[] removed = new boolean[1];
+        // compute por clave: si la sala queda vacía se borra sin carreras con un join concurrente
+        rooms.computeIfPresent(room, (k, members) -> {
+            removed[0] = members.remove(connection);
+            return members.isEmpty() ? null : members;
+        });
+        connection.rooms.remove(room);
+        return removed[0];
+    }
+
+    /** Saca la conexión de todas sus salas; devuelve las salas que abandonó. */
+    Set<String> leaveAll(Connection connection) {
+        Set<String> joined = new HashSet<>(connection.rooms);
+        connection.rooms.clear();
+        for (String room : joined) {
+            rooms.computeIfPresent(room, (k, members) -> {
+                members.remove(connection);
+                return members.isEmpty() ? null : members;
+            });
+        }
+        return joined;
+    }
+
+    Set<Connection> members(String room) {
+        Set<Connection> members = rooms.get(room);
+        return members != null ? members : Collections.emptySet();
+    }
+
+    boolean isMember(String room, Connection connection) {
+        return members(room).contains(connection);
+    }
+
+    int roomCount() {
+        return rooms.size();
+    }
+
+    void clear() {
+        rooms.clear();
+    }
+
+    /** Normaliza el nombre de sala; devuelve null si no es válido. */
+    static String normalize(String room) {
+        if (room == null) {
+            return null;
+        }
+        String r = room.trim().toLowerCase();
+        if (r.isEmpty() || r.length() > MAX_ROOM_NAME) {
+            return null;
+        }
+        for (int i = 0; i < r.length(); i++) {
+            char c = r.charAt(i);
+            if (!(Character.isLetterOrDigit(c) || c == '-' || c == '_')) {
+                return null;
+            }
+        }
+        return r;
+    }
+}
@@ -0,0 +1,457 @@
+package server;
+
+import protocol.Message;
+import java.text.Normalizer;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Índice invertido en memoria para buscar en el historial de chat. Cada término (palabra de
+ * {@code contenido}, o {@code u:<usuario>} para el autor) tiene una lista de secuencias de los
+ * mensajes que lo contienen, guardada como diferencias en varint dentro de un {@code byte[]}.
+ *
+ * <p>La difusión solo encola el mensaje; un hilo indexador aparte lo trocea y actualiza el índice,
+ * así que indexar nunca retrasa la entrega. La memoria está acotada: se guardan los últimos
+ * {@code chat.search.maxMessages} mensajes y, cada cuarto de esa cifra desalojado, se recortan
+ * de las listas las secuencias ya desalojadas.
+ *
+ * <p>Consultas: palabras (todas deben aparecer, sin distinguir mayúsculas ni tildes) y los filtros
+ * {@code from:usuario}, {@code in:sala}, {@code after:fecha} y {@code before:fecha} (fecha
+ * {@code yyyy-MM-dd} o epoch millis). Los resultados salen de más nuevo a más antiguo, por páginas.
+ */
+class SearchIndex {
+    private static final Logger logger = Logger.getLogger(SearchIndex.class.getName());
+    private static final int BATCH = 256;
+    private static final int MIN_TOKEN = 2;
+    private static final int MAX_TOKEN = 40;
+    private static final String AUTHOR = "u:";
+
+    private final BlockingQueue<Message> pending;
+    private final AtomicLong dropped = new AtomicLong();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Thread indexer;
+    private volatile boolean running = true;
+
+    // Con el candado de escritura (indexador) o de lectura (consultas)
+    private final Map<String, Postings> terms = new HashMap<>();
+    // Mensajes indexados en un anillo ordenado por secuencia; el más antiguo se desaloja
+    private final long[] docSeqs;
+    private final Message[] docs;
+    private int head;
+    private int size;
+    private long evictedSinceCompaction;
+
+    SearchIndex(int maxMessages, int queueCapacity) {
+        int capacity = Math.max(16, maxMessages);
+        this.docSeqs = new long[capacity];
+        this.docs = new Message[capacity];
+        this.pending = new ArrayBlockingQueue<>(Math.max(16, queueCapacity));
+        this.indexer = new Thread(this::indexLoop, "chat-search-indexer");
+        this.indexer.setDaemon(true);
+        this.indexer.start();
+    }
+
+    /** Índice con la configuración de propiedades del sistema, o {@code null} si está desactivado. */
+    static SearchIndex openDefault() {
+        if (!Boolean.parseBoolean(System.getProperty("chat.search.enabled", "true"))) {
+            return null;
+        }
+        return new SearchIndex(Integer.getInteger("chat.search.maxMessages", 100000),
+                Integer.getInteger("chat.search.queue", 8192));
+    }
+
+    /** Encola un mensaje ya numerado. Nunca bloquea; si la cola está llena lo cuenta como descartado. */
+    void offer(Message mensaje) {
+        if (!running || !pending.offer(mensaje)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** Indexa en el hilo que llama (al arrancar, con lo recuperado del registro en disco). */
+    void restore(List<Message> mensajes) {
+        lock.writeLock().lock();
+        try {
+            for (Message m : mensajes) {
+                index(m);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    long droppedCount() {
+        return dropped.get();
+    }
+
+    int indexedCount() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void close() {
+        running = false;
+        indexer.interrupt();
+    }
+
+    // ---------------------------------------------------------------- indexación
+
+    private void indexLoop() {
+        List<Message> batch = new ArrayList<>(BATCH);
+        while (running) {
+            try {
+                Message first = pending.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, BATCH - 1);
+                // Varios hilos difunden a la vez: se ordena el lote para añadir casi siempre al final
+                batch.sort((a, b) -> Long.compare(a.getSeq(), b.getSeq()));
+                lock.writeLock().lock();
+                try {
+                    for (Message m : batch) {
+                        index(m);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Error indexando mensajes para la búsqueda", e);
+                batch.clear();
+            }
+        }
+    }
+
+    private void index(Message m) {
+        if (m.getSeq() == null) {
+            return;
+        }
+        long seq = m.getSeq();
+        if (size > 0 && seq <= docSeqs[slot(0)]) {
+            return; // ya desalojado o repetido
+        }
+        if (size == docs.length) {
+            evictOldest();
+        }
+        insertDoc(seq, m);
+        Set<String> unicos = new HashSet<>();
+        tokenize(m.getContenido(), unicos);
+        if (m.getUsuario() != null) {
+            unicos.add(AUTHOR + normalize(m.getUsuario()));
+        }
+        for (String term : unicos) {
+            terms.computeIfAbsent(term, k -> new Postings()).add(seq);
+        }
+    }
+
+    // Inserción ordenada: casi siempre al final; si llega desordenado se desplaza desde la cola
+    private void insertDoc(long seq, Message m) {
+        int i = size;
+        while (i > 0 && docSeqs[slot(i - 1)] > seq) {
+            docSeqs[slot(i)] = docSeqs[slot(i - 1)];
+            docs[slot(i)] = docs[slot(i - 1)];
+            i--;
+        }
+        docSeqs[slot(i)] = seq;
+        docs[slot(i)] = m;
+        size++;
+    }
+
+    private void evictOldest() {
+        docs[head] = null;
+        head = (head + 1) % docs.length;
+        size--;
+        if (++evictedSinceCompaction >= docs.length / 4) {
+            evictedSinceCompaction = 0;
+            long min = docSeqs[slot(0)];
+            Iterator<Postings> it = terms.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().trimBefore(min)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private int slot(int i) {
+        return (head + i) % docs.length;
+    }
+
+    // Secuencia -> mensaje por búsqueda binaria en el anillo; null si ya no está
+    private Message doc(long seq) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long s = docSeqs[slot(mid)];
+            if (s < seq) {
+                lo = mid + 1;
+            } else if (s > seq) {
+                hi = mid - 1;
+            } else {
+                return docs[slot(mid)];
+            }
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------------- consultas
+
+    /** Página de resultados: mensajes de más nuevo a más antiguo y cursor para la siguiente (o null). */
+    static final class Page {
+        final List<Message> mensajes;
+        final Long next;
+
+        Page(List<Message> mensajes, Long next) {
+            this.mensajes = mensajes;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Busca mensajes con secuencia menor que {@code beforeSeq} (0 = desde el más reciente).
+     *
+     * @param visible qué mensajes puede ver quien pregunta (p. ej. solo los de sus salas)
+     * @throws IllegalArgumentException si la consulta no tiene ningún término o un filtro no es válido
+     */
+    Page search(String consulta, long beforeSeq, int limit, Predicate<Message> visible) {
+        Query q = Query.parse(consulta);
+        lock.readLock().lock();
+        try {
+            // Intersección empezando por la lista más corta; las demás se consultan por búsqueda binaria
+            List<long[]> listas = new ArrayList<>(q.terms.size());
+            for (String term : q.terms) {
+                Postings p = terms.get(term);
+                if (p == null) {
+                    return new Page(List.of(), null);
+                }
+                listas.add(p.decode());
+            }
+            listas.sort((a, b) -> Integer.compare(a.length, b.length));
+            long[] candidatos = listas.get(0);
+            long limite = beforeSeq > 0 ? beforeSeq : Long.MAX_VALUE;
+            List<Message> resultado = new ArrayList<>(limit);
+            for (int i = candidatos.length - 1; i >= 0; i--) {
+                long seq = candidatos[i];
+                if (seq >= limite || !inAll(listas, seq)) {
+                    continue;
+                }
+                Message m = doc(seq);
+                if (m == null) {
+                    break; // lo anterior ya está desalojado
+                }
+                // La hora la pone el cliente (y cada nodo la suya): no crece con la secuencia, así que
+                // quedar fuera del rango de fechas descarta este mensaje pero no detiene el recorrido
+                if ((m.getHora() != 0 && (m.getHora() < q.after || m.getHora() >= q.before))
+                        || (q.room != null && !q.room.equals(m.getSala())) || !visible.test(m)) {
+                    continue;
+                }
+                if (resultado.size() == limit) {
+                    return new Page(resultado, resultado.get(limit - 1).getSeq());
+                }
+                resultado.add(m);
+            }
+            return new Page(resultado, null);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static boolean inAll(List<long[]> listas, long seq) {
+        for (int i = 1; i < listas.size(); i++) {
+            if (Arrays.binarySearch(listas.get(i), seq) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Consulta ya troceada: términos (incluido {@code u:autor}) y filtros. */
+    static final class Query {
+        final List<String> terms = new ArrayList<>();
+        String room;
+        long after = Long.MIN_VALUE;
+        long before = Long.MAX_VALUE;
+
+        static Query parse(String consulta) {
+            Query q = new Query();
+            if (consulta != null) {
+                for (String palabra : consulta.trim().split("\\s+")) {
+                    int dos = palabra.indexOf(':');
+                    String op = dos > 0 ? palabra.substring(0, dos).toLowerCase(Locale.ROOT) : "";
+                    String valor = dos > 0 ? palabra.substring(dos + 1) : palabra;
+                    switch (op) {
+                        case "from":
+                            if (!valor.isEmpty()) {
+                                q.terms.add(AUTHOR + normalize(valor));
+                            }
+                            break;
+                        case "in":
+                            q.room = RoomRegistry.normalize(valor);
+                            break;
+                        case "after":
+                            q.after = time(valor);
+                            break;
+                        case "before":
+                            q.before = time(valor);
+                            break;
+                        default:
+                            Set<String> tokens = new HashSet<>();
+                            tokenize(palabra, tokens);
+                            q.terms.addAll(tokens);
+                    }
+                }
+            }
+            if (q.terms.isEmpty()) {
+                throw new IllegalArgumentException("La búsqueda necesita al menos una palabra o from:usuario");
+            }
+            return q;
+        }
+
+        private static long time(String valor) {
+            try {
+                if (!valor.isEmpty() && valor.chars().allMatch(Character::isDigit)) {
+                    return Long.parseLong(valor);
+                }
+                return LocalDate.parse(valor).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (NumberFormatException | DateTimeParseException e) {
+                throw new IllegalArgumentException("Fecha inválida: " + valor);
+            }
+        }
+    }
+
+    // Minúsculas y sin tildes: "Canción" y "cancion" son el mismo término
+    static String normalize(String texto) {
+        String sinMarcas = Normalizer.normalize(texto, Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+        return sinMarcas.toLowerCase(Locale.ROOT);
+    }
+
+    static void tokenize(String texto, Set<String> out) {
+        if (texto == null || texto.isEmpty()) {
+            return;
+        }
+        String s = normalize(texto);
+        int start = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            boolean letra = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if (letra && start < 0) {
+                start = i;
+            } else if (!letra && start >= 0) {
+                int len = i - start;
+                if (len >= MIN_TOKEN && len <= MAX_TOKEN) {
+                    out.add(s.substring(start, i));
+                }
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * Lista de secuencias crecientes comprimida: cada una se guarda como la diferencia con la
+     * anterior en varint (1 byte para diferencias de hasta 127), la primera respecto a 0.
+     */
+    static final class Postings {
+        private byte[] data = new byte[8];
+        private int len;
+        private int count;
+        private long last;
+
+        void add(long seq) {
+            if (seq > last) {
+                writeVarint(seq - last);
+                last = seq;
+                count++;
+            } else if (Arrays.binarySearch(decode(), seq) < 0) {
+                // Llegó desordenado entre lotes (raro): se reconstruye la lista
+                long[] seqs = decode();
+                long[] merged = Arrays.copyOf(seqs, seqs.length + 1);
+                merged[seqs.length] = seq;
+                Arrays.sort(merged);
+                rebuild(merged, 0);
+            }
+        }
+
+        long[] decode() {
+            long[] seqs = new long[count];
+            long value = 0;
+            int pos = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                value += delta;
+                seqs[i] = value;
+            }
+            return seqs;
+        }
+
+        /** Quita las secuencias menores que {@code min}; devuelve {@code true} si la lista queda vacía. */
+        boolean trimBefore(long min) {
+            if (count == 0 || last < min) {
+                return true;
+            }
+            long[] seqs = decode();
+            int from = 0;
+            while (seqs[from] < min) {
+                from++;
+            }
+            if (from > 0) {
+                rebuild(seqs, from);
+            }
+            return false;
+        }
+
+        private void rebuild(long[] seqs, int from) {
+            data = new byte[Math.max(8, (seqs.length - from) * 2)];
+            len = 0;
+            count = 0;
+            last = 0;
+            for (int i = from; i < seqs.length; i++) {
+                writeVarint(seqs[i] - last);
+                last = seqs[i];
+                count++;
+            }
+        }
+
+        private void writeVarint(long v) {
+            if (len + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((v & ~0x7FL) != 0) {
+                data[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            data[len++] = (byte) v;
+        }
+    }
+}
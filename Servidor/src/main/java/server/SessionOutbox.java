@@ -0,0 +1,288 @@
+package server;
+
+import jakarta.websocket.CloseReason;
+import jakarta.websocket.SendResult;
+import jakarta.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import protocol.BinaryMessageCodec;
+import protocol.MessageCodec;
+
+/**
+ * Cola de salida acotada de una sesión. Los mensajes se encolan sin bloquear y se
+ * envían de uno en uno mediante {@code getAsyncRemote()}, de modo que un cliente lento
+ * solo retrasa su propia cola y no la difusión al resto.
+ *
+ * <p>Con {@code chat.batch.delayMs > 0} los mensajes se agrupan: el primero de una ráfaga espera como
+ * mucho ese tiempo (o hasta juntar {@code chat.batch.maxMessages}) y todos salen en un único frame
+ * {@code BATCH}. Lo que se acumula mientras hay un envío en vuelo sale agrupado sin espera adicional.
+ *
+ * <p>Los envíos son asíncronos también en el modo de hilos virtuales ({@link VirtualThreads}): un
+ * {@code getBasicRemote()} bloqueante fija el hilo portador dentro de Tyrus y no compensa.
+ */
+class SessionOutbox {
+
+    /** Qué hacer cuando la cola está llena. */
+    enum OverflowPolicy {
+        /** Descarta el mensaje más antiguo de la cola para hacer sitio al nuevo. */
+        DROP_OLDEST,
+        /** Descarta el mensaje nuevo y conserva lo que ya estaba encolado. */
+        DROP_NEWEST,
+        /** Cierra la sesión: el consumidor es demasiado lento. */
+        DISCONNECT
+    }
+
+    static final int DEFAULT_CAPACITY = Integer.getInteger("chat.outbox.capacity", 256);
+    static final OverflowPolicy DEFAULT_POLICY = parsePolicy(System.getProperty("chat.outbox.policy"));
+
+    private static final Logger logger = Logger.getLogger(SessionOutbox.class.getName());
+    private static final long SLOW_SEND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Agrupación opcional (0 = desactivada)
+    static final long BATCH_DELAY_MS = Math.max(0, Long.getLong("chat.batch.delayMs", 0));
+    static final int BATCH_MAX_MESSAGES = Math.max(1, Integer.getInteger("chat.batch.maxMessages", 64));
+    private static final ScheduledExecutorService FLUSHER = BATCH_DELAY_MS > 0
+            ? Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "chat-batch-flush");
+                t.setDaemon(true);
+                return t;
+            })
+            : null;
+
+    private final Session session;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final boolean binary;
+    private final Queue<OutboundFrame> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+    private volatile long sendStartedAt;
+    private volatile int inFlight;
+
+    // Contadores por sesión
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    SessionOutbox(Session session) {
+        this(session, DEFAULT_CAPACITY, DEFAULT_POLICY);
+    }
+
+    SessionOutbox(Session session, int capacity, OverflowPolicy policy) {
+        this.session = session;
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.binary = BinaryMessageCodec.SUBPROTOCOL.equals(session.getNegotiatedSubprotocol());
+    }
+
+    /**
+     * Encola un frame; se enviará en el formato negociado por la sesión. Nunca bloquea.
+     *
+     * @return {@code false} si el frame se descartó o la sesión se cerró por desbordamiento
+     */
+    boolean offer(OutboundFrame frame) {
+        if (closed) {
+            return false;
+        }
+        if (depth.incrementAndGet() > capacity) {
+            switch (policy) {
+                case DROP_NEWEST:
+                    depth.decrementAndGet();
+                    dropped.incrementAndGet();
+                    ChatMetrics.DROPPED.increment();
+                    return false;
+                case DISCONNECT:
+                    depth.decrementAndGet();
+                    dropped.incrementAndGet();
+                    ChatMetrics.DROPPED.increment();
+                    disconnectSlowConsumer();
+                    return false;
+                case DROP_OLDEST:
+                default:
+                    depth.decrementAndGet();
+                    dropped.incrementAndGet();
+                    ChatMetrics.DROPPED.increment();
+                    if (queue.poll() == null) {
+                        // Un envío concurrente se llevó lo encolado: se descarta el nuevo, como con
+                        // DROP_NEWEST, para no pasar de la capacidad
+                        return false;
+                    }
+                    break;
+            }
+        }
+        queue.offer(frame);
+        enqueued.incrementAndGet();
+        // depth incluye altas en curso de otros hilos que aún pueden descartarse
+        maxDepth.accumulateAndGet(Math.min(depth.get(), capacity), Math::max);
+        drain();
+        return true;
+    }
+
+    private void drain() {
+        drain(false);
+    }
+
+    // Solo un envío asíncrono en vuelo por sesión; el callback encadena el siguiente.
+    // Con agrupación, una ráfaga que empieza con la cola ociosa espera a la ventana salvo que ya esté completa.
+    private void drain(boolean windowElapsed) {
+        while (!closed && !queue.isEmpty() && sending.compareAndSet(false, true)) {
+            if (FLUSHER != null && !windowElapsed && depth.get() < BATCH_MAX_MESSAGES) {
+                sending.set(false);
+                if (flushScheduled.compareAndSet(false, true)) {
+                    FLUSHER.schedule(this::flushWindow, BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            List<OutboundFrame> frames = pollBatch();
+            if (frames.isEmpty()) {
+                sending.set(false);
+                continue;
+            }
+            sendStartedAt = System.nanoTime();
+            try {
+                send(frames);
+                return;
+            } catch (RuntimeException e) {
+                failed.addAndGet(frames.size());
+                ChatMetrics.FAILED.add(frames.size());
+                sending.set(false);
+                logger.log(Level.FINE, "Envío asíncrono rechazado para sesión " + session.getId(), e);
+            }
+        }
+    }
+
+    private void flushWindow() {
+        flushScheduled.set(false);
+        drain(true);
+    }
+
+    private List<OutboundFrame> pollBatch() {
+        int max = FLUSHER != null ? BATCH_MAX_MESSAGES : 1;
+        List<OutboundFrame> frames = new ArrayList<>(Math.min(max, Math.max(1, depth.get())));
+        OutboundFrame next;
+        while (frames.size() < max && (next = queue.poll()) != null) {
+            depth.decrementAndGet();
+            frames.add(next);
+        }
+        return frames;
+    }
+
+    // Un solo mensaje sale tal cual; varios se concatenan ya codificados dentro de un BATCH
+    private void send(List<OutboundFrame> frames) {
+        inFlight = frames.size();
+        if (frames.size() > 1) {
+            batches.incrementAndGet();
+        }
+        if (binary) {
+            ByteBuffer data = frames.size() == 1 ? frames.get(0).binary() : binaryBatch(frames);
+            session.getAsyncRemote().sendBinary(data, this::onSendComplete);
+        } else {
+            String text = frames.size() == 1 ? frames.get(0).text() : textBatch(frames);
+            session.getAsyncRemote().sendText(text, this::onSendComplete);
+        }
+    }
+
+    private static ByteBuffer binaryBatch(List<OutboundFrame> frames) {
+        List<ByteBuffer> items = new ArrayList<>(frames.size());
+        for (OutboundFrame frame : frames) {
+            items.add(frame.binary());
+        }
+        return BinaryMessageCodec.encodeBatch(items);
+    }
+
+    private static String textBatch(List<OutboundFrame> frames) {
+        List<String> items = new ArrayList<>(frames.size());
+        for (OutboundFrame frame : frames) {
+            items.add(frame.text());
+        }
+        return MessageCodec.encodeBatch(items);
+    }
+
+    private void onSendComplete(SendResult result) {
+        long elapsed = System.nanoTime() - sendStartedAt;
+        ChatMetrics.SEND_LATENCY.record(elapsed);
+        if (result.isOK()) {
+            sent.addAndGet(inFlight);
+            ChatMetrics.SENT.increment();
+            ChatMetrics.SENT_MESSAGES.add(inFlight);
+        } else {
+            failed.addAndGet(inFlight);
+            ChatMetrics.FAILED.add(inFlight);
+            logger.log(Level.FINE, "Fallo al enviar a sesión " + session.getId(), result.getException());
+        }
+        if (elapsed > SLOW_SEND_NANOS) {
+            ChatMetrics.slowSend(session.getId(), elapsed);
+        }
+        sending.set(false);
+        // Lo acumulado durante el envío ya ha esperado: sale sin abrir otra ventana
+        drain(true);
+    }
+
+    private void disconnectSlowConsumer() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        depth.set(0);
+        logger.warning("Cerrando sesión " + session.getId() + " por consumidor lento (cola llena: " + capacity + ")");
+        try {
+            session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER, "Consumidor demasiado lento"));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error al cerrar sesión lenta", e);
+        }
+    }
+
+    /** Descarta lo pendiente; se llama cuando la sesión ya se cerró. */
+    void close() {
+        closed = true;
+        queue.clear();
+        depth.set(0);
+    }
+
+    int getDepth() { return Math.max(0, depth.get()); }
+    int getMaxDepth() { return maxDepth.get(); }
+    int getCapacity() { return capacity; }
+    OverflowPolicy getPolicy() { return policy; }
+    boolean isBinary() { return binary; }
+    long getEnqueued() { return enqueued.get(); }
+    long getSent() { return sent.get(); }
+    long getDropped() { return dropped.get(); }
+    long getFailed() { return failed.get(); }
+    long getBatches() { return batches.get(); }
+
+    @Override
+    public String toString() {
+        return String.format("cola=%d/%d max=%d enviados=%d lotes=%d descartados=%d fallidos=%d",
+                getDepth(), capacity, getMaxDepth(), getSent(), getBatches(), getDropped(), getFailed());
+    }
+
+    private static OverflowPolicy parsePolicy(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return OverflowPolicy.DROP_OLDEST;
+        }
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warning("Política de desbordamiento desconocida '" + value + "', usando DROP_OLDEST");
+            return OverflowPolicy.DROP_OLDEST;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bus de clúster sobre TCP en malla completa. Cada nodo escucha en su puerto de clúster y abre una
+ * conexión saliente a cada par configurado; por las salientes solo se escribe y por las entrantes
+ * solo se lee. Permite levantar varios servidores en una misma máquina usando loopback:
+ *
+ * <pre>
+ * java -Dchat.cluster.port=9101 -Dchat.cluster.peers=localhost:9102 ... server.WebSocketServer 0.0.0.0 8025
+ * java -Dchat.cluster.port=9102 -Dchat.cluster.peers=localhost:9101 ... server.WebSocketServer 0.0.0.0 8026
+ * </pre>
+ *
+ * <p>Protocolo: al conectar se envía {@code writeUTF(nodeId)}; después cada frame es
+ * {@code writeUTF(nodoOrigen) | int longitud | bytes UTF-8 del JSON}.
+ */
+class TcpMessageBus implements MessageBus {
+    private static final Logger logger = Logger.getLogger(TcpMessageBus.class.getName());
+    private static final int PEER_QUEUE = Integer.getInteger("chat.cluster.queue", 4096);
+    private static final int MAX_FRAME = 1024 * 1024;
+
+    private final String nodeId;
+    private final int port;
+    private final List<Peer> peers = new ArrayList<>();
+    private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "chat-cluster");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private volatile Listener listener;
+    private ServerSocket serverSocket;
+
+    TcpMessageBus(String nodeId, int port, String peerList) {
+        this.nodeId = nodeId;
+        this.port = port;
+        for (String p : peerList.split(",")) {
+            String hp = p.trim();
+            int idx = hp.lastIndexOf(':');
+            if (idx <= 0) {
+                continue;
+            }
+            try {
+                peers.add(new Peer(hp.substring(0, idx), Integer.parseInt(hp.substring(idx + 1))));
+            } catch (NumberFormatException e) {
+                logger.warning("Par de clúster inválido: " + hp);
+            }
+        }
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        this.running = true;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new IllegalStateException("No se pudo abrir el puerto de clúster " + port, e);
+        }
+        threads.execute(this::acceptLoop);
+        for (Peer peer : peers) {
+            threads.execute(peer::run);
+        }
+        logger.info("Nodo " + nodeId + " en clúster: puerto " + port + ", pares " + peers);
+    }
+
+    @Override
+    public void publish(String mensajeJson) {
+        for (Peer peer : peers) {
+            if (!peer.queue.offer(mensajeJson)) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public long droppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignored) {
+            // cerrando
+        }
+        for (Peer peer : peers) {
+            peer.closeSocket();
+        }
+        threads.shutdownNow();
+    }
+
+    // ---------------------------------------------------------------- entrada
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket s = serverSocket.accept();
+                s.setTcpNoDelay(true);
+                threads.execute(() -> readLoop(s));
+            } catch (IOException e) {
+                if (running) {
+                    logger.log(Level.WARNING, "Error aceptando conexión de clúster", e);
+                }
+            }
+        }
+    }
+
+    private void readLoop(Socket socket) {
+        String remoteId = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            remoteId = in.readUTF();
+            if (nodeId.equals(remoteId)) {
+                // Un par mal configurado que apunta a este mismo nodo
+                logger.warning("Conexión de clúster hacia sí mismo descartada");
+                return;
+            }
+            logger.info("Nodo " + remoteId + " conectado desde " + socket.getRemoteSocketAddress());
+            while (running) {
+                String origin = in.readUTF();
+                int len = in.readInt();
+                if (len < 0 || len > MAX_FRAME) {
+                    throw new IOException("Frame de clúster inválido: " + len);
+                }
+                byte[] buf = new byte[len];
+                in.readFully(buf);
+                if (nodeId.equals(origin)) {
+                    continue; // supresión de bucles: es nuestro propio mensaje
+                }
+                try {
+                    listener.onRemoteMessage(origin, new String(buf, StandardCharsets.UTF_8));
+                } catch (RuntimeException e) {
+                    // Un frame que falla al entregarse no tira el enlace ni la presencia del nodo
+                    logger.log(Level.WARNING, "Error entregando un mensaje del nodo " + origin, e);
+                }
+            }
+        } catch (EOFException e) {
+            // el nodo remoto cerró
+        } catch (IOException e) {
+            if (running) {
+                logger.log(Level.FINE, "Conexión de clúster perdida con " + remoteId, e);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // nada
+            }
+            if (remoteId != null && !nodeId.equals(remoteId) && running) {
+                logger.info("Nodo " + remoteId + " desconectado");
+                listener.onNodeDown(remoteId);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------- salida
+
+    private final class Peer {
+        final String host;
+        final int port;
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(PEER_QUEUE);
+        private volatile Socket socket;
+
+        Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // Conecta, envía presencia y después vacía la cola; ante fallos reintenta con espera creciente
+        void run() {
+            long backoff = 250;
+            while (running) {
+                try (Socket s = new Socket()) {
+                    socket = s;
+                    s.connect(new InetSocketAddress(host, port), 2000);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    out.writeUTF(nodeId);
+                    // Lo encolado mientras no había conexión ya no tiene sentido: el par reconstruye por la presencia
+                    writeFrame(out, listener.presenceSync(queue::clear));
+                    out.flush();
+                    backoff = 250;
+                    while (running) {
+                        String next = queue.poll(1, TimeUnit.SECONDS);
+                        if (next == null) {
+                            continue;
+                        }
+                        writeFrame(out, next);
+                        // Agrupar lo que ya esté encolado en un solo flush
+                        String more;
+                        while ((more = queue.poll()) != null) {
+                            writeFrame(out, more);
+                        }
+                        out.flush();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Sin conexión con el par " + this, e);
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(backoff * 2, 5000);
+            }
+        }
+
+        private void writeFrame(DataOutputStream out, String json) throws IOException {
+            byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+            out.writeUTF(nodeId);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        void closeSocket() {
+            Socket s = socket;
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                    // nada
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+}
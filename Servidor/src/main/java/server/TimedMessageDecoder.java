@@ -0,0 +1,19 @@
+package server;
+
+import jakarta.websocket.DecodeException;
+import protocol.Message;
+import protocol.MessageTextDecoder;
+
+/** {@link MessageTextDecoder} que registra el tiempo de cada decodificación en {@link ChatMetrics}. */
+public class TimedMessageDecoder extends MessageTextDecoder {
+
+    @Override
+    public Message decode(String texto) throws DecodeException {
+        long start = System.nanoTime();
+        try {
+            return super.decode(texto);
+        } finally {
+            ChatMetrics.DECODE.record(System.nanoTime() - start);
+        }
+    }
+}
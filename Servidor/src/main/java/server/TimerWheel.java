@@ -0,0 +1,139 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Temporizador de rueda con hash: un único hilo y un array circular de cubetas, cada una con las
+ * tareas que vencen en ese tic (más las vueltas que les falten). Programar es encolar sin candados;
+ * el hilo reparte lo nuevo en su cubeta y en cada tic solo recorre una cubeta, así que el coste no
+ * depende de cuántas tareas haya pendientes en total.
+ *
+ * <p>La precisión es de un tic: pensado para miles de plazos holgados (latidos, inactividad), no
+ * para tiempos exactos. Las tareas se ejecutan en el hilo de la rueda y deben ser breves.
+ */
+final class TimerWheel {
+    private static final Logger logger = Logger.getLogger(TimerWheel.class.getName());
+    private static TimerWheel shared;
+
+    private final long tickNanos;
+    private final Entry[] wheel;
+    private final int mask;
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    private final Thread worker;
+    private volatile boolean stopped;
+    // Solo desde el hilo de la rueda
+    private long tick;
+
+    /**
+     * @param tick      duración de un tic
+     * @param wheelSize número de cubetas (se redondea a potencia de 2)
+     */
+    TimerWheel(String name, long tick, TimeUnit unit, int wheelSize) {
+        this.tickNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), unit.toNanos(tick));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.wheel = new Entry[size];
+        this.mask = size - 1;
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Rueda común del servidor (latidos, plazos de reanudación), creada al primer uso con un tic de
+     * {@code chat.timer.tickMs}.
+     */
+    static synchronized TimerWheel shared() {
+        if (shared == null) {
+            shared = new TimerWheel("chat-timer", Long.getLong("chat.timer.tickMs", 100), TimeUnit.MILLISECONDS, 512);
+        }
+        return shared;
+    }
+
+    static synchronized void stopShared() {
+        if (shared != null) {
+            shared.stop();
+        }
+    }
+
+    /** Ejecuta {@code task} en el hilo de la rueda pasado {@code delay} (redondeado al tic siguiente). */
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            return;
+        }
+        pending.offer(new Entry(task, System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay))));
+    }
+
+    /** Detiene el hilo; lo pendiente no se ejecuta. */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (!stopped) {
+            long deadline = startTime + tickNanos * (tick + 1);
+            long wait;
+            while (!stopped && (wait = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, wait);
+            }
+            if (stopped) {
+                return;
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)], (int) (tick & mask));
+            tick++;
+        }
+    }
+
+    // Reparte lo programado desde otros hilos; lo ya vencido va a la cubeta actual
+    private void transferPending() {
+        Entry e;
+        while ((e = pending.poll()) != null) {
+            long due = e.deadline / tickNanos;
+            long ticks = Math.max(due, tick);
+            e.rounds = (ticks - tick) / wheel.length;
+            int idx = (int) (ticks & mask);
+            e.next = wheel[idx];
+            wheel[idx] = e;
+        }
+    }
+
+    private void expire(Entry head, int idx) {
+        Entry keep = null;
+        Entry e = head;
+        while (e != null) {
+            Entry next = e.next;
+            if (e.rounds > 0) {
+                e.rounds--;
+                e.next = keep;
+                keep = e;
+            } else {
+                try {
+                    e.task.run();
+                } catch (RuntimeException ex) {
+                    logger.log(Level.WARNING, "Error en tarea del temporizador", ex);
+                }
+            }
+            e = next;
+        }
+        wheel[idx] = keep;
+    }
+
+    private static final class Entry {
+        final Runnable task;
+        final long deadline; // nanos desde startTime
+        long rounds;
+        Entry next;
+
+        Entry(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cubo de fichas sin candados. En lugar de guardar fichas y última recarga (dos valores que habría
+ * que actualizar juntos) se guarda un único instante, hasta dónde se ha gastado el crédito de
+ * tiempo: las fichas disponibles son {@code (ahora - instante) / intervalo}, con tope en la ráfaga
+ * (algoritmo GCRA). Consumir es un solo {@code compareAndSet}.
+ */
+final class TokenBucket {
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final AtomicLong spentUntil;
+
+    /**
+     * @param perSecond fichas que se recuperan por segundo
+     * @param burst     fichas máximas acumulables (ráfaga permitida)
+     */
+    TokenBucket(double perSecond, int burst) {
+        this.nanosPerToken = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / Math.max(perSecond, 1e-9)));
+        this.burstNanos = nanosPerToken * Math.max(1, burst);
+        this.spentUntil = new AtomicLong(System.nanoTime() - burstNanos);
+    }
+
+    /**
+     * Consume {@code tokens} fichas si las hay; nunca bloquea. Una petición mayor que la ráfaga
+     * cuesta la ráfaga entera, para que pueda pasar con el cubo lleno.
+     */
+    boolean tryAcquire(int tokens) {
+        long cost = Math.min(burstNanos, nanosPerToken * Math.max(1, tokens));
+        while (true) {
+            long now = System.nanoTime();
+            long current = spentUntil.get();
+            long floor = now - burstNanos;
+            // Comparación por diferencia: nanoTime puede dar la vuelta
+            long base = current - floor > 0 ? current : floor;
+            long next = base + cost;
+            if (next - now > 0) {
+                return false;
+            }
+            if (spentUntil.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package server;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Modo opcional de hilos virtuales ({@code -Dchat.threads=virtual}, requiere Java 21): el
+ * procesamiento de cada mensaje entrante se ejecuta en hilos virtuales en lugar de en los hilos del
+ * contenedor, y al apagar las sesiones se cierran en paralelo, cada una en su hilo virtual. Los
+ * envíos siguen siendo asíncronos ({@link SessionOutbox}).
+ *
+ * <p>El ejecutor se obtiene por reflexión para que el mismo código compile con {@code release 17};
+ * en un JDK sin hilos virtuales se avisa y se sigue en el modo de hilos de plataforma.
+ */
+final class VirtualThreads {
+    private static final Logger logger = Logger.getLogger(VirtualThreads.class.getName());
+
+    static final long SHUTDOWN_MS = Long.getLong("chat.threads.shutdownMs", 5000);
+    private static final MethodHandle FACTORY = factory(System.getProperty("chat.threads", "platform"));
+    private static final ExecutorService EXECUTOR = FACTORY != null ? newExecutor() : null;
+    /** {@code true} si el modo está activo (pedido y disponible en este JDK). */
+    static final boolean ENABLED = EXECUTOR != null;
+
+    private VirtualThreads() {
+    }
+
+    private static MethodHandle factory(String mode) {
+        if (!"virtual".equalsIgnoreCase(mode.trim())) {
+            return null;
+        }
+        try {
+            MethodHandle factory = MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            logger.info("Procesamiento de mensajes en hilos virtuales");
+            return factory;
+        } catch (ReflectiveOperationException e) {
+            logger.warning("chat.threads=virtual requiere Java 21 (JDK actual: " + Runtime.version()
+                    + "); se usan hilos de plataforma");
+            return null;
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) FACTORY.invoke();
+        } catch (Throwable e) {
+            throw new IllegalStateException("No se pudo crear el ejecutor de hilos virtuales", e);
+        }
+    }
+
+    /** Ejecuta la tarea en un hilo virtual nuevo. Tras {@link #shutdown()} la rechaza. */
+    static void execute(Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    /**
+     * Ejecutor que encadena sus tareas de una en una y en orden sobre hilos virtuales: conserva el
+     * orden de los mensajes de una sesión sin reservarle un hilo mientras no hace nada.
+     */
+    static Executor serial() {
+        return new SerialExecutor();
+    }
+
+    /**
+     * Apagado ordenado: no se aceptan tareas nuevas, los mensajes a medio procesar tienen
+     * {@code chat.threads.shutdownMs} para terminar y después se interrumpen.
+     */
+    static void shutdown() {
+        if (!ENABLED) {
+            return;
+        }
+        await(EXECUTOR);
+    }
+
+    /**
+     * Ejecuta cada tarea en su propio hilo virtual y espera como mucho {@code chat.threads.shutdownMs}
+     * a que terminen todas. Sin el modo activo las ejecuta en el hilo actual, una tras otra.
+     */
+    static void runAll(Collection<Runnable> tasks) {
+        if (!ENABLED) {
+            tasks.forEach(Runnable::run);
+            return;
+        }
+        ExecutorService executor = newExecutor();
+        tasks.forEach(executor::execute);
+        await(executor);
+    }
+
+    private static void await(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_MS, TimeUnit.MILLISECONDS)) {
+                logger.warning("Tareas en hilos virtuales sin terminar tras " + SHUTDOWN_MS + " ms; se interrumpen");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class SerialExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.offer(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && running.compareAndSet(false, true)) {
+                try {
+                    EXECUTOR.execute(this::runAll);
+                } catch (RuntimeException e) {
+                    // Apagando: lo pendiente se descarta
+                    tasks.clear();
+                    running.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        private void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Error en tarea de sesión", e);
+                }
+            }
+            running.set(false);
+            // Lo encolado entre el último poll y soltar el indicador
+            try {
+                schedule();
+            } catch (RuntimeException e) {
+                logger.log(Level.FINE, "Tareas de sesión descartadas durante el apagado", e);
+            }
+        }
+    }
+}
@@ -1,11 +1,9 @@
 package server;
 
+import com.sun.net.httpserver.HttpServer;
 import org.glassfish.tyrus.server.Server;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import protocol.PerMessageDeflate;
 import java.net.InetAddress;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class WebSocketServer {
     public static void main(String[] args) {
@@ -28,30 +26,15 @@ public class WebSocketServer {
 
         Server server = new Server(host, port, context, null, ChatEndpoint.class);
 
-    // Iniciar un responder UDP simple para descubrimiento en LAN (puerto 9090)
-    ExecutorService exec = Executors.newSingleThreadExecutor();
-    final int discoveryPort = 9090;
-    final int portForDiscovery = port; // capturar en una variable final para usar dentro de la lambda
-    exec.submit(() -> {
-            try (DatagramSocket ds = new DatagramSocket(discoveryPort)) {
-                System.out.println("Discovery responder escuchando en UDP/" + discoveryPort);
-                byte[] buf = new byte[256];
-                while (!Thread.currentThread().isInterrupted()) {
-                    DatagramPacket pkt = new DatagramPacket(buf, buf.length);
-                    ds.receive(pkt);
-                    String received = new String(pkt.getData(), 0, pkt.getLength()).trim();
-                    if ("DISCOVER_CHAT_SERVER".equalsIgnoreCase(received)) {
-                        String localIp = InetAddress.getLocalHost().getHostAddress();
-                        String response = String.format("CHAT_SERVER:%s:%d", localIp, portForDiscovery);
-                        byte[] respBytes = response.getBytes();
-                        DatagramPacket resp = new DatagramPacket(respBytes, respBytes.length, pkt.getAddress(), pkt.getPort());
-                        ds.send(resp);
-                    }
-                }
-            } catch (Exception e) {
-                System.out.println("Discovery responder detenido: " + e.getMessage());
-            }
-        });
+        // Clúster opcional: -Dchat.cluster.port=<puerto> -Dchat.cluster.peers=host:puerto,...
+        MessageBus bus = MessageBus.fromSystemProperties();
+        ChatEndpoint.attachBus(bus);
+
+        // Métricas por JMX y, con -Dchat.metrics.port=<puerto>, en HTTP /metrics (formato Prometheus)
+        HttpServer metricsHttp = ChatMetrics.start();
+
+        // Descubrimiento en LAN: responde a sondas multicast/broadcast con dirección, sesiones y carga del nodo
+        DiscoveryResponder discovery = DiscoveryResponder.start(host, port, bus.nodeId());
 
         try {
             server.start();
@@ -69,7 +52,19 @@ public class WebSocketServer {
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            // El contenedor standalone no llama a @PreDestroy: apagado ordenado antes de parar
+            if (discovery != null) {
+                discovery.close();
+            }
+            new ChatEndpoint().cleanup();
             server.stop();
+            bus.close();
+            if (metricsHttp != null) {
+                metricsHttp.stop(0);
+            }
+            if (PerMessageDeflate.ENABLED) {
+                System.out.println(PerMessageDeflate.summary());
+            }
         }
     }
 }
\ No newline at end of file